@@ -0,0 +1,181 @@
+package es.udc.fi.ri.practicari;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.document.DateTools;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DoublePoint;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.util.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares building the documents of {@link IndexFiles} with a reused {@link DocumentBuilder}
+ * against allocating a new document, fields and readers for every file as indexDoc used to do.
+ * Run it with the GC profiler to see the allocation rate of each:
+ *
+ * <pre>
+ * mvn -P jmh package
+ * java -jar target/benchmarks.jar DocumentBuilderBenchmark -prof gc
+ * </pre>
+ *
+ * and compare the gc.alloc.rate.norm (bytes per document) of both benchmarks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DocumentBuilderBenchmark {
+  /* Size of the indexed file, in lines of text. */
+  @Param({"10", "1000"})
+  public int lines;
+
+  private Path dir;
+  private Path file;
+  private DocumentBuilder builder;
+  private final char[] chunk = new char[8192];
+
+  @Setup
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("DocumentBuilderBenchmark");
+    file = dir.resolve("doc.txt");
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < lines; i++) {
+      text.append("line ").append(i).append(" of some text to index\n");
+    }
+    Files.write(file, text.toString().getBytes(StandardCharsets.UTF_8));
+    builder = new DocumentBuilder(null, new IndexSettings(),
+            InetAddress.getLocalHost().getHostName());
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    IOUtils.rm(dir);
+  }
+
+  @Benchmark
+  public void reusedDocument(Blackhole bh) throws IOException {
+    FileStat stat = FileStat.of(file);
+    try (InputStream stream = Files.newInputStream(file)) {
+      consume(builder.build(file, stream, stat), bh);
+    }
+  }
+
+  @Benchmark
+  public void newDocument(Blackhole bh) throws Exception {
+    BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+    try (InputStream stream = Files.newInputStream(file)) {
+      consume(legacyDocument(file, stream, attrs.lastModifiedTime().toMillis()), bh);
+    }
+  }
+
+  /* Reads the fields the way IndexWriter does: the contents to the end, then the rest. */
+  private void consume(Document doc, Blackhole bh) throws IOException {
+    for (IndexableField field : doc) {
+      Reader reader = field.readerValue();
+      if (reader != null) {
+        int n;
+        while ((n = reader.read(chunk, 0, chunk.length)) != -1) {
+          bh.consume(n);
+        }
+      } else {
+        bh.consume(field.stringValue());
+        bh.consume(field.numericValue());
+      }
+    }
+  }
+
+  /* The document indexDoc built before DocumentBuilder, one allocation and stat call at a time. */
+  private static Document legacyDocument(Path file, InputStream stream, long lastModified)
+          throws Exception {
+    Document doc = new Document();
+    doc.add(new StringField("path", file.toString(), Field.Store.YES));
+    doc.add(new LongPoint("modified", lastModified));
+
+    FieldType type = new FieldType(IndexFiles.FIELD_TYPE);
+    type.setStored(false);
+    type.setStoreTermVectors(false);
+    type.setStoreTermVectorPositions(false);
+    ContentReader contents = new ContentReader(stream, -1, MessageDigest.getInstance("SHA-256"));
+    doc.add(new Field("contents", contents, type));
+    doc.add(new Field("hash", "", StringField.TYPE_STORED) {
+      @Override
+      public String stringValue() {
+        try {
+          return contents.hexDigest();
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+
+    doc.add(new StringField("hostname", InetAddress.getLocalHost().getHostName(), Field.Store.YES));
+    doc.add(new StringField("thread", Thread.currentThread().getName(), Field.Store.YES));
+
+    String fileType;
+    if (Files.isSymbolicLink(file)) {
+      fileType = "symbolic link";
+    } else if (Files.isRegularFile(file)) {
+      fileType = "regular file";
+    } else if (Files.isDirectory(file)) {
+      fileType = "directory";
+    } else {
+      fileType = "other";
+    }
+    doc.add(new StringField("type", fileType, Field.Store.YES));
+
+    long sizeBytes = Files.size(file);
+    double sizeKB = (double) sizeBytes / 1024;
+    doc.add(new DoublePoint("sizeKB", sizeKB));
+    doc.add(new StoredField("sizeKB", sizeKB));
+    doc.add(new NumericDocValuesField(ChangeDetector.SIZE_FIELD, sizeBytes));
+    doc.add(new NumericDocValuesField(ChangeDetector.MODIFIED_FIELD, lastModified));
+
+    BasicFileAttributes attr = Files.readAttributes(file, BasicFileAttributes.class);
+    Date creationTimeDate = new Date(attr.creationTime().toMillis());
+    Date lastAccessTimeDate = new Date(attr.lastAccessTime().toMillis());
+    Date lastModifiedTimeDate = new Date(attr.lastModifiedTime().toMillis());
+    doc.add(new StringField("creationTime", attr.creationTime().toString(), Field.Store.YES));
+    doc.add(new StringField("lastAccessTime", attr.lastAccessTime().toString(), Field.Store.YES));
+    doc.add(new StringField("lastModifiedTime", lastModifiedTimeDate.toString(), Field.Store.YES));
+    doc.add(new StringField("creationTimeLucene",
+            DateTools.dateToString(creationTimeDate, DateTools.Resolution.MILLISECOND),
+            Field.Store.YES));
+    doc.add(new StringField("lastAccessTimeLucene",
+            DateTools.dateToString(lastAccessTimeDate, DateTools.Resolution.MILLISECOND),
+            Field.Store.YES));
+    doc.add(new StringField("lastModifiedTimeLucene",
+            DateTools.dateToString(lastModifiedTimeDate, DateTools.Resolution.MILLISECOND),
+            Field.Store.YES));
+    return doc;
+  }
+}
@@ -0,0 +1,152 @@
+package es.udc.fi.ri.practicari;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Documents per second of an update run with the path postings behind {@link IdBloomCodec} or
+ * with the default codec:
+ *
+ * <pre>
+ * mvn -P jmh package
+ * java -jar target/benchmarks.jar IdBloomBenchmark
+ * </pre>
+ *
+ * Every iteration starts from an index of segments segments of docsPerSegment documents, written
+ * with the codec being measured. append adds batches of documents with updateDocument on path, as
+ * IndexFiles does, and flushes each batch, which resolves its deletes against every segment.
+ * incrementalCheck looks the paths up with {@link ChangeDetector}, as -incremental does for every
+ * file before indexing it. The paths are either all new, the case the bloom filter is meant for,
+ * or all already in the index.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class IdBloomBenchmark {
+  private static final int BATCH = 10000;
+
+  @Param({"true", "false"})
+  public boolean bloom;
+
+  /* Paths that are not in the index yet (new) or that are (existing). */
+  @Param({"new", "existing"})
+  public String paths;
+
+  @Param({"50"})
+  public int segments;
+
+  @Param({"20000"})
+  public int docsPerSegment;
+
+  private Path dir;
+  private Directory directory;
+  private IndexWriter writer;
+  private ChangeDetector changes;
+  private final Document doc = new Document();
+  private final Field path = new StringField("path", "", Field.Store.YES);
+  private final Field contents = new TextField("contents", "", Field.Store.NO);
+  private final Random random = new Random(42);
+  private long nextPath;
+
+  @Setup(Level.Iteration)
+  public void setUp() throws IOException {
+    doc.add(path);
+    doc.add(contents);
+    dir = Files.createTempDirectory("IdBloomBenchmark");
+    directory = FSDirectory.open(dir);
+    // One segment per commit, left unmerged, as after several update runs
+    try (IndexWriter base = new IndexWriter(directory, config(OpenMode.CREATE))) {
+      for (int s = 0; s < segments; s++) {
+        for (int i = 0; i < docsPerSegment; i++) {
+          set(nextPath++);
+          base.addDocument(doc);
+        }
+        base.commit();
+      }
+    }
+    changes = new ChangeDetector(DirectoryReader.open(directory));
+    writer = new IndexWriter(directory, config(OpenMode.APPEND));
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDown() throws IOException {
+    doc.clear();
+    IOUtils.close(changes, writer, directory);
+    IOUtils.rm(dir);
+    nextPath = 0;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public void append() throws IOException {
+    for (int i = 0; i < BATCH; i++) {
+      set(nextFile());
+      writer.updateDocument(new Term("path", path.stringValue()), doc);
+    }
+    writer.flush();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public void incrementalCheck(Blackhole bh) throws IOException {
+    for (int i = 0; i < BATCH; i++) {
+      set(nextFile());
+      bh.consume(changes.check(path.stringValue(), -1, -1));
+    }
+  }
+
+  private long nextFile() {
+    return paths.equals("new") ? nextPath++ : random.nextInt(segments * docsPerSegment);
+  }
+
+  private IndexWriterConfig config(OpenMode mode) {
+    IndexWriterConfig iwc = new IndexWriterConfig(new StandardAnalyzer());
+    iwc.setOpenMode(mode);
+    iwc.setMergePolicy(NoMergePolicy.INSTANCE);
+    iwc.setRAMBufferSizeMB(256);
+    if (bloom) {
+      iwc.setCodec(IdBloomCodec.forField("path"));
+    }
+    return iwc;
+  }
+
+  private void set(long file) {
+    path.setStringValue("/home/docs/dir" + (file % 997) + "/file" + file + ".txt");
+    contents.setStringValue("some text of file " + file);
+  }
+}
@@ -0,0 +1,79 @@
+package es.udc.fi.ri.practicari;
+
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Per-file log lines written by a background thread, so that workers only hand a line over to a
+ * queue instead of waiting on the console. Lines are written in batches of whatever is queued,
+ * and the queue is bounded: if the console cannot keep up, workers wait for room.
+ */
+final class AsyncLog implements Closeable {
+  static final int QUEUE_CAPACITY = 8192;
+
+  /* Marker telling the writer thread to stop. */
+  private static final String END = new String("");
+
+  private final BlockingQueue<String> lines = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+  private final PrintStream out;
+  private final Thread writer;
+
+  AsyncLog(PrintStream out) {
+    this.out = out;
+    this.writer = new Thread(this::drain, "async-log");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  void println(String line) {
+    try {
+      lines.put(line);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void drain() {
+    List<String> batch = new ArrayList<>();
+    StringBuilder text = new StringBuilder();
+    String separator = System.lineSeparator();
+    try {
+      while (true) {
+        batch.add(lines.take());
+        lines.drainTo(batch);
+        boolean end = false;
+        for (String line : batch) {
+          if (line == END) {
+            end = true;
+            break;
+          }
+          text.append(line).append(separator);
+        }
+        out.print(text);
+        out.flush();
+        batch.clear();
+        text.setLength(0);
+        if (end) {
+          return;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Writes the lines still queued and stops the writer thread. */
+  @Override
+  public void close() {
+    println(END);
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
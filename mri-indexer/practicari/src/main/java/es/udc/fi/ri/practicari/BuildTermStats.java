@@ -0,0 +1,53 @@
+package es.udc.fi.ri.practicari;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import org.apache.lucene.index.IndexReader;
+
+public class BuildTermStats {
+    public static void main(String[] args) throws Exception {
+        String usage =
+                "java es.udc.fi.ri.practicari.BuildTermStats"
+                        + " -index INDEX_PATH[,INDEX_PATH...] [-field FIELD] [-out PATH]\n\n"
+                        + "Writes df, idf and collection frequency of every term of FIELD (default contents) to PATH"
+                        + " (default INDEX_PATH/termstats-FIELD.bin), for TopTermsInDocs -termStats\n"
+                        + "INDEX_PATH can be an index or a shard set written by IndexFiles -shards";
+        String indexPath = null;
+        String field = TopTermsInDocs.CONTENT;
+        String outPath = null;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-index":
+                    indexPath = args[++i];
+                    break;
+                case "-field":
+                    field = args[++i];
+                    break;
+                case "-out":
+                    outPath = args[++i];
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown parameter " + args[i]);
+            }
+        }
+
+        if (indexPath == null) {
+            System.err.println("Usage: " + usage);
+            System.exit(1);
+        }
+
+        Path out = outPath != null ? Paths.get(outPath) : TermStatsSidecar.defaultPath(indexPath, field);
+        try (IndexReader reader = ShardSet.openReader(indexPath)) {
+            long start = System.nanoTime();
+            // Siempre se escribe de nuevo, aunque el que haya sea del mismo commit
+            TermStatsSidecar.build(reader, field, out);
+            try (TermStatsSidecar stats = TermStatsSidecar.open(reader, field, out)) {
+                System.out.println("Term statistics of " + stats.numTerms() + " terms of " + field + " in "
+                        + stats.numDocs() + " documents written to " + out + " in "
+                        + (System.nanoTime() - start) / 1_000_000 + " ms");
+                System.out.println("Commit: " + TermStatsSidecar.commitKey(reader, field));
+            }
+        }
+    }
+}
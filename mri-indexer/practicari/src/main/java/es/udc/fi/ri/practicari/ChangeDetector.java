@@ -0,0 +1,107 @@
+package es.udc.fi.ri.practicari;
+
+import java.io.Closeable;
+import java.io.IOException;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Tells {@link IndexFiles} whether a file changed since it was last indexed, by looking its path
+ * up in a snapshot of the index taken before the run and comparing the size and modification time
+ * stored in the "fileSize" and "fileModified" doc values. Nothing is loaded in memory up front:
+ * each lookup is a terms dictionary seek per segment, so it scales to millions of files. When the
+ * index is written with {@link IdBloomCodec} (-idBloom), the seeks for a path a segment does not have are
+ * mostly answered by its bloom filter.
+ *
+ * <p>Lookups may run concurrently from several workers.
+ */
+class ChangeDetector implements Closeable {
+  static final String SIZE_FIELD = "fileSize";
+  static final String MODIFIED_FIELD = "fileModified";
+
+  /** What the index knows about a file. */
+  enum Status {
+    /** Not in the index. */
+    NEW,
+    /** Indexed with the same size and modification time. */
+    UNCHANGED,
+    /** Indexed, but its size or modification time differ. */
+    MODIFIED
+  }
+
+  private final IndexReader reader;
+
+  /** Looks files up in reader, an index or every shard of a {@link ShardSet}; closed with this. */
+  ChangeDetector(IndexReader reader) {
+    this.reader = reader;
+  }
+
+  /** Returns the status of the file indexed under path. */
+  Status check(String path, long size, long lastModified) throws IOException {
+    long found = find(path);
+    if (found == -1) {
+      return Status.NEW;
+    }
+    LeafReader leaf = reader.leaves().get((int) (found >>> 32)).reader();
+    int doc = (int) found;
+    return size == value(leaf, SIZE_FIELD, doc) && lastModified == value(leaf, MODIFIED_FIELD, doc)
+        ? Status.UNCHANGED
+        : Status.MODIFIED;
+  }
+
+  /** Returns the stored content hash of the document indexed under path, or null. */
+  String storedHash(String path) throws IOException {
+    long found = find(path);
+    if (found == -1) {
+      return null;
+    }
+    return reader.leaves().get((int) (found >>> 32)).reader().document((int) found).get("hash");
+  }
+
+  /** Returns the live doc indexed under path as leaf ordinal << 32 | doc, or -1 if there is none. */
+  private long find(String path) throws IOException {
+    BytesRef term = new BytesRef(path);
+    for (LeafReaderContext ctx : reader.leaves()) {
+      LeafReader leaf = ctx.reader();
+      Terms terms = leaf.terms("path");
+      if (terms == null) {
+        continue;
+      }
+      TermsEnum termsEnum = terms.iterator();
+      if (!termsEnum.seekExact(term)) {
+        continue;
+      }
+      Bits liveDocs = leaf.getLiveDocs();
+      PostingsEnum postings = termsEnum.postings(null, PostingsEnum.NONE);
+      for (int doc = postings.nextDoc();
+          doc != DocIdSetIterator.NO_MORE_DOCS;
+          doc = postings.nextDoc()) {
+        if (liveDocs == null || liveDocs.get(doc)) {
+          return ((long) ctx.ord << 32) | doc;
+        }
+      }
+    }
+    return -1;
+  }
+
+  private static long value(LeafReader leaf, String field, int doc) throws IOException {
+    NumericDocValues values = leaf.getNumericDocValues(field);
+    if (values == null || !values.advanceExact(doc)) {
+      return -1;
+    }
+    return values.longValue();
+  }
+
+  @Override
+  public void close() throws IOException {
+    reader.close();
+  }
+}
@@ -0,0 +1,215 @@
+package es.udc.fi.ri.practicari;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.Directory;
+
+/**
+ * Periodic commits of a long {@link IndexFiles} run, so that it can be resumed after a crash.
+ *
+ * <p>Every commit carries in its user data the docs root of the run, whether the run was still
+ * going and the directories whose whole subtree had been indexed by then (relative to the docs
+ * root, only the topmost ones). A resumed run skips those subtrees without listing them. Inside
+ * the other directories, files already indexed are found in the index itself by their path, size
+ * and modification time, as in an incremental run, so none of them is read again.
+ */
+final class Checkpointer {
+  static final String DOCS_KEY = "checkpoint.docs";
+  static final String STATUS_KEY = "checkpoint.status";
+  static final String DONE_KEY = "checkpoint.doneDirs";
+  static final String RUNNING = "running";
+  static final String COMPLETE = "complete";
+  /* Separates the done directories in DONE_KEY; it cannot be part of a path. */
+  private static final String SEPARATOR = "\0";
+
+  private final IndexWriter writer;
+  private final Path root;
+  /* Done directories found in the checkpoint this run resumes from. */
+  private final Set<String> resumed;
+  private final Set<String> done = ConcurrentHashMap.newKeySet();
+  private ScheduledExecutorService timer;
+
+  /**
+   * @param writer Writer the checkpoints are committed with
+   * @param root Docs root of the run
+   * @param resumed Directories done by the run being resumed, see {@link #readDone}
+   */
+  Checkpointer(IndexWriter writer, Path root, Set<String> resumed) {
+    this.writer = writer;
+    this.root = root.toAbsolutePath().normalize();
+    this.resumed = resumed;
+    done.addAll(resumed);
+  }
+
+  /**
+   * Returns the directories done by the run that last committed to the index, or an empty set if
+   * there is no checkpoint of an unfinished run over the same docs root.
+   */
+  static Set<String> readDone(Directory dir, Path root) throws IOException {
+    if (!DirectoryReader.indexExists(dir)) {
+      System.out.println("No index to resume, starting from scratch");
+      return Collections.emptySet();
+    }
+    Map<String, String> data;
+    try (DirectoryReader reader = DirectoryReader.open(dir)) {
+      data = reader.getIndexCommit().getUserData();
+    }
+    String docs = root.toAbsolutePath().normalize().toString();
+    if (!docs.equals(data.get(DOCS_KEY))) {
+      System.out.println("No checkpoint of " + docs + " in the index, resuming file by file");
+      return Collections.emptySet();
+    }
+    if (COMPLETE.equals(data.get(STATUS_KEY))) {
+      System.out.println("The last run over " + docs + " completed, resuming file by file");
+      return Collections.emptySet();
+    }
+    Set<String> resumed = new HashSet<>();
+    String value = data.get(DONE_KEY);
+    if (value != null && !value.isEmpty()) {
+      Collections.addAll(resumed, value.split(SEPARATOR));
+    }
+    System.out.println("Resuming from a checkpoint with " + resumed.size() + " finished directories");
+    return resumed;
+  }
+
+  /** Commits a checkpoint every given number of seconds until {@link #finish()}. */
+  void start(int seconds) {
+    timer = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "checkpoint");
+      thread.setDaemon(true);
+      return thread;
+    });
+    timer.scheduleWithFixedDelay(() -> {
+      try {
+        checkpoint();
+      } catch (IOException | RuntimeException e) {
+        // The run goes on; the next checkpoint will try again
+        e.printStackTrace(System.err);
+      }
+    }, seconds, seconds, TimeUnit.SECONDS);
+  }
+
+  /** Commits what has been indexed so far, recording the directories done. */
+  synchronized void checkpoint() throws IOException {
+    // Taken before the commit starts: every document of these directories has been added
+    List<String> dirs = compact();
+    writer.setLiveCommitData(userData(RUNNING, dirs).entrySet());
+    writer.commit();
+    System.out.println("Checkpoint committed with " + dirs.size() + " finished directories");
+  }
+
+  /** Stops the checkpoints and marks the run complete in the next commit. */
+  synchronized void finish() {
+    if (timer != null) {
+      timer.shutdownNow();
+      try {
+        timer.awaitTermination(1, TimeUnit.MINUTES);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    writer.setLiveCommitData(userData(COMPLETE, Collections.emptyList()).entrySet());
+  }
+
+  /** Returns whether the run being resumed had finished the subtree of dir. */
+  boolean isResumedDone(Path dir) {
+    return !resumed.isEmpty() && resumed.contains(relative(dir));
+  }
+
+  /** Records that every accepted file under dir has been indexed. */
+  void markDone(Path dir) {
+    done.add(relative(dir));
+  }
+
+  /**
+   * Starts tracking a directory whose files are indexed asynchronously: it is done once it has
+   * been listed ({@link Dir#release()} by the lister) and each of its files and subdirectories
+   * has been released as well.
+   */
+  Dir open(Path dir, Dir parent) {
+    if (parent != null) {
+      parent.pending.incrementAndGet();
+    }
+    return new Dir(dir, parent);
+  }
+
+  private Map<String, String> userData(String status, List<String> dirs) {
+    Map<String, String> data = new HashMap<>();
+    data.put(DOCS_KEY, root.toString());
+    data.put(STATUS_KEY, status);
+    data.put(DONE_KEY, String.join(SEPARATOR, dirs));
+    return data;
+  }
+
+  /* Drops the done directories below another done directory, which is enough to skip them. */
+  private List<String> compact() {
+    List<String> topmost = new ArrayList<>();
+    if (done.contains("")) {
+      done.retainAll(Collections.singleton(""));
+      topmost.add("");
+      return topmost;
+    }
+    for (String dir : done) {
+      boolean covered = false;
+      for (Path parent = root.getFileSystem().getPath(dir).getParent(); parent != null;
+          parent = parent.getParent()) {
+        if (done.contains(parent.toString())) {
+          covered = true;
+          break;
+        }
+      }
+      if (covered) {
+        done.remove(dir);
+      } else {
+        topmost.add(dir);
+      }
+    }
+    return topmost;
+  }
+
+  private String relative(Path dir) {
+    return root.relativize(dir.toAbsolutePath().normalize()).toString();
+  }
+
+  /** A directory being indexed, with the count of its listing, files and subdirectories left. */
+  final class Dir {
+    private final Path path;
+    private final Dir parent;
+    /* Starts at 1 for the listing of the directory itself. */
+    private final AtomicInteger pending = new AtomicInteger(1);
+
+    private Dir(Path path, Dir parent) {
+      this.path = path;
+      this.parent = parent;
+    }
+
+    /** Counts one more file of this directory still to be indexed. */
+    void add() {
+      pending.incrementAndGet();
+    }
+
+    /** Releases the listing or one file of this directory. */
+    void release() {
+      if (pending.decrementAndGet() == 0) {
+        markDone(path);
+        if (parent != null) {
+          parent.release();
+        }
+      }
+    }
+  }
+}
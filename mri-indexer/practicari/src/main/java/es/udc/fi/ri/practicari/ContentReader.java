@@ -0,0 +1,246 @@
+package es.udc.fi.ri.practicari;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * Streams the text of a file through a fixed size buffer exactly as {@link IndexFiles} indexes
+ * it: every line terminator ("\n", "\r" or "\r\n") becomes {@link System#lineSeparator()}, the
+ * last line gets one even if the file does not end with a terminator, and reading stops after
+ * the first onlyLines lines.
+ *
+ * <p>While the text is read, its UTF-8 bytes are fed to an optional {@link MessageDigest}, so the
+ * content hash is computed in the same pass that feeds the token stream.
+ *
+ * <p>A reader can be {@link #reset(InputStream) reset} to a new file, which reuses its buffers and
+ * decoder, so a worker needs a single instance for all the files it indexes.
+ */
+class ContentReader extends Reader {
+  private static final int BUFFER_SIZE = 8192;
+  private static final String LINE_SEPARATOR = System.lineSeparator();
+
+  private InputStream in;
+  private final int maxLines;
+  private final MessageDigest digest;
+  /* Bytes read from in but not decoded yet, kept between position and limit. */
+  private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+  private final char[] buffer = new char[BUFFER_SIZE];
+  private final CharBuffer chars = CharBuffer.wrap(buffer);
+  private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  private final byte[] digestBuffer = new byte[BUFFER_SIZE];
+  private int pos;
+  private int limit;
+  private int digestPos;
+  /* Separator chars still to be returned for the last line read. */
+  private int pendingSeparator;
+  private int lines;
+  private boolean lineOpen;
+  private boolean afterCR;
+  private boolean done;
+  private boolean endOfInput;
+  private boolean decoded;
+  private char highSurrogate;
+  private byte[] hash;
+
+  /**
+   * @param stream The file contents, decoded as UTF-8
+   * @param maxLines Number of lines to read, or -1 to read the whole file
+   * @param digest Digest updated with the text read, or null if no hash is needed
+   */
+  ContentReader(InputStream stream, int maxLines, MessageDigest digest) {
+    this.maxLines = maxLines;
+    this.digest = digest;
+    reset(stream);
+  }
+
+  /** Starts reading a new file, forgetting everything about the previous one. */
+  void reset(InputStream stream) {
+    in = stream;
+    bytes.clear().limit(0);
+    decoder.reset();
+    if (digest != null) {
+      digest.reset();
+    }
+    pos = 0;
+    limit = 0;
+    digestPos = 0;
+    pendingSeparator = 0;
+    lines = 0;
+    lineOpen = false;
+    afterCR = false;
+    done = maxLines == 0;
+    endOfInput = false;
+    decoded = false;
+    highSurrogate = 0;
+    hash = null;
+  }
+
+  @Override
+  public int read(char[] cbuf, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    int n = 0;
+    while (n < len) {
+      if (pendingSeparator > 0) {
+        char c = LINE_SEPARATOR.charAt(LINE_SEPARATOR.length() - pendingSeparator--);
+        cbuf[off + n++] = c;
+        digest(c);
+        if (pendingSeparator == 0 && lines == maxLines) {
+          done = true;
+        }
+        continue;
+      }
+      if (done) {
+        break;
+      }
+      if (pos == limit) {
+        limit = fill();
+        pos = 0;
+        if (limit == 0) {
+          if (lineOpen) {
+            endLine();
+          } else {
+            done = true;
+          }
+          continue;
+        }
+      }
+      char c = buffer[pos++];
+      if (afterCR) {
+        afterCR = false;
+        if (c == '\n') {
+          continue;
+        }
+      }
+      if (c == '\r') {
+        afterCR = true;
+        endLine();
+      } else if (c == '\n') {
+        endLine();
+      } else {
+        cbuf[off + n++] = c;
+        digest(c);
+        lineOpen = true;
+      }
+    }
+    return n == 0 ? -1 : n;
+  }
+
+  /* Decodes the next chunk of the file into buffer, returning 0 at the end of the file. */
+  private int fill() throws IOException {
+    chars.clear();
+    while (chars.position() == 0 && !decoded) {
+      if (!endOfInput) {
+        bytes.compact();
+        int n = in.read(bytes.array(), bytes.position(), bytes.remaining());
+        if (n < 0) {
+          endOfInput = true;
+        } else {
+          bytes.position(bytes.position() + n);
+        }
+        bytes.flip();
+      }
+      CoderResult result = decoder.decode(bytes, chars, endOfInput);
+      if (endOfInput && result.isUnderflow() && decoder.flush(chars).isUnderflow()) {
+        decoded = true;
+      }
+    }
+    return chars.position();
+  }
+
+  private void endLine() {
+    lines++;
+    lineOpen = false;
+    pendingSeparator = LINE_SEPARATOR.length();
+  }
+
+  /** Reads whatever is left of the text into a String. */
+  String readAll() throws IOException {
+    StringBuilder sb = new StringBuilder();
+    char[] chunk = new char[BUFFER_SIZE];
+    int n;
+    while ((n = read(chunk, 0, chunk.length)) != -1) {
+      sb.append(chunk, 0, n);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Returns the digest of the text as a hex string. Anything not consumed yet is read first, so
+   * the result does not depend on how much of the text the caller used.
+   */
+  String hexDigest() throws IOException {
+    if (hash == null) {
+      char[] chunk = new char[BUFFER_SIZE];
+      while (read(chunk, 0, chunk.length) != -1) {
+        // drain
+      }
+      if (highSurrogate != 0) {
+        digestByte('?');
+      }
+      digest.update(digestBuffer, 0, digestPos);
+      hash = digest.digest();
+    }
+    return IndexFiles.toHex(hash);
+  }
+
+  /* Encodes c as UTF-8 into the digest, replacing unpaired surrogates like String.getBytes does. */
+  private void digest(char c) {
+    if (digest == null) {
+      return;
+    }
+    if (digestPos > digestBuffer.length - 4) {
+      digest.update(digestBuffer, 0, digestPos);
+      digestPos = 0;
+    }
+    if (highSurrogate != 0) {
+      char high = highSurrogate;
+      highSurrogate = 0;
+      if (Character.isLowSurrogate(c)) {
+        int cp = Character.toCodePoint(high, c);
+        digestByte(0xf0 | (cp >> 18));
+        digestByte(0x80 | ((cp >> 12) & 0x3f));
+        digestByte(0x80 | ((cp >> 6) & 0x3f));
+        digestByte(0x80 | (cp & 0x3f));
+        return;
+      }
+      digestByte('?');
+      digest(c);
+      return;
+    }
+    if (c < 0x80) {
+      digestByte(c);
+    } else if (c < 0x800) {
+      digestByte(0xc0 | (c >> 6));
+      digestByte(0x80 | (c & 0x3f));
+    } else if (Character.isHighSurrogate(c)) {
+      highSurrogate = c;
+    } else if (Character.isLowSurrogate(c)) {
+      digestByte('?');
+    } else {
+      digestByte(0xe0 | (c >> 12));
+      digestByte(0x80 | ((c >> 6) & 0x3f));
+      digestByte(0x80 | (c & 0x3f));
+    }
+  }
+
+  private void digestByte(int b) {
+    digestBuffer[digestPos++] = (byte) b;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+}
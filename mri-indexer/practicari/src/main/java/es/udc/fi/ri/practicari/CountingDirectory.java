@@ -0,0 +1,71 @@
+package es.udc.fi.ri.practicari;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FilterDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+
+/**
+ * Directory wrapper that adds the size of every file written through it to a counter, which can
+ * be shared by several directories to measure the total bytes an indexing run writes.
+ */
+class CountingDirectory extends FilterDirectory {
+  private final LongAdder bytesWritten;
+
+  CountingDirectory(Directory in, LongAdder bytesWritten) {
+    super(in);
+    this.bytesWritten = bytesWritten;
+  }
+
+  @Override
+  public IndexOutput createOutput(String name, IOContext context) throws IOException {
+    return new CountingIndexOutput(in.createOutput(name, context));
+  }
+
+  @Override
+  public IndexOutput createTempOutput(String prefix, String suffix, IOContext context)
+      throws IOException {
+    return new CountingIndexOutput(in.createTempOutput(prefix, suffix, context));
+  }
+
+  private final class CountingIndexOutput extends IndexOutput {
+    private final IndexOutput out;
+    private boolean closed;
+
+    CountingIndexOutput(IndexOutput out) {
+      super("CountingIndexOutput(" + out + ")", out.getName());
+      this.out = out;
+    }
+
+    @Override
+    public void writeByte(byte b) throws IOException {
+      out.writeByte(b);
+    }
+
+    @Override
+    public void writeBytes(byte[] b, int offset, int length) throws IOException {
+      out.writeBytes(b, offset, length);
+    }
+
+    @Override
+    public long getFilePointer() {
+      return out.getFilePointer();
+    }
+
+    @Override
+    public long getChecksum() throws IOException {
+      return out.getChecksum();
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (!closed) {
+        closed = true;
+        bytesWritten.add(out.getFilePointer());
+      }
+      out.close();
+    }
+  }
+}
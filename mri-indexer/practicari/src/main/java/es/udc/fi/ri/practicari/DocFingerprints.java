@@ -0,0 +1,90 @@
+package es.udc.fi.ri.practicari;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.StoredFieldVisitor;
+
+/**
+ * Reads the content fingerprint of the documents of an {@link IndexFiles} index: the first 128 bits
+ * of the SHA-256 of their text, taken from the stored "hash" field or, for indexes with stored
+ * contents, computed from the "contents" field. Both give the same value for the same text, so
+ * documents of either kind can be compared.
+ *
+ * <p>Only those two stored fields are decoded. An instance must be used by a single thread.
+ */
+final class DocFingerprints {
+  private final MessageDigest sha256;
+  private final Visitor visitor = new Visitor();
+
+  DocFingerprints() {
+    try {
+      sha256 = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Puts the fingerprint of doc in out[0] (high bits) and out[1] (low bits).
+   *
+   * @return false if the document has neither contents nor hash
+   */
+  boolean read(LeafReader leaf, int doc, long[] out) throws IOException {
+    visitor.contents = null;
+    visitor.hash = null;
+    leaf.document(doc, visitor);
+    if (visitor.contents != null) {
+      byte[] digest = sha256.digest(visitor.contents);
+      out[0] = toLong(digest, 0);
+      out[1] = toLong(digest, 8);
+      return true;
+    }
+    if (visitor.hash != null && visitor.hash.length() >= 32) {
+      out[0] = Long.parseUnsignedLong(visitor.hash.substring(0, 16), 16);
+      out[1] = Long.parseUnsignedLong(visitor.hash.substring(16, 32), 16);
+      return true;
+    }
+    return false;
+  }
+
+  private static long toLong(byte[] bytes, int offset) {
+    long value = 0;
+    for (int i = offset; i < offset + 8; i++) {
+      value = (value << 8) | (bytes[i] & 0xff);
+    }
+    return value;
+  }
+
+  private static final class Visitor extends StoredFieldVisitor {
+    byte[] contents;
+    String hash;
+
+    @Override
+    public Status needsField(FieldInfo fieldInfo) {
+      if (contents != null) {
+        // The contents decide, whatever comes next
+        return Status.STOP;
+      }
+      switch (fieldInfo.name) {
+        case "contents":
+        case "hash":
+          return Status.YES;
+        default:
+          return Status.NO;
+      }
+    }
+
+    @Override
+    public void stringField(FieldInfo fieldInfo, String value) {
+      if (fieldInfo.name.equals("contents")) {
+        contents = value.getBytes(StandardCharsets.UTF_8);
+      } else {
+        hash = value;
+      }
+    }
+  }
+}
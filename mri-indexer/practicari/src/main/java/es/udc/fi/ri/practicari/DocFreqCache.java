@@ -0,0 +1,91 @@
+package es.udc.fi.ri.practicari;
+
+import java.io.IOException;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+
+/**
+ * Document frequency and log10 idf of the terms of a field, looked up by their bytes through a
+ * single {@link TermsEnum} of the whole reader that is reused for every seek. Terms already looked
+ * up are kept in a {@link BytesRefHash} with their values in parallel primitive arrays, so the
+ * common terms, which show up in almost every document, are only sought once. With a {@link
+ * TermStatsSidecar} the df is read from it instead of the terms dictionary. When the cache
+ * reaches its maximum number of terms it is emptied and starts over.
+ *
+ * <p>The idf is numDocs / df, as in {@link TopTermsInDocs}. An instance must be used by a single
+ * thread.
+ */
+final class DocFreqCache {
+  private final TermsEnum termsEnum;
+  private final TermStatsSidecar.Lookup stats;
+  private final int numDocs;
+  private final int maxTerms;
+  private final BytesRefHash ids = new BytesRefHash();
+  private int[] docFreqs = new int[16];
+  private double[] logIdfs = new double[16];
+
+  /**
+   * @param field Field of the terms
+   * @param maxTerms Terms kept before the cache is emptied
+   * @param stats Precomputed statistics of field to read the df from instead of seeking, or null
+   */
+  DocFreqCache(IndexReader reader, String field, int maxTerms, TermStatsSidecar.Lookup stats)
+      throws IOException {
+    Terms terms = stats != null ? null : MultiTerms.getTerms(reader, field);
+    this.termsEnum = terms == null ? TermsEnum.EMPTY : terms.iterator();
+    this.stats = stats;
+    this.numDocs = reader.numDocs();
+    this.maxTerms = maxTerms;
+  }
+
+  /**
+   * Looks the term up and returns the id to read its values with, valid until the next call.
+   * Terms missing from the field have a df of 0.
+   */
+  int lookup(BytesRef term) throws IOException {
+    int id = ids.find(term);
+    if (id >= 0) {
+      return id;
+    }
+    if (ids.size() >= maxTerms) {
+      ids.clear();
+      ids.reinit();
+    }
+    int docFreq;
+    if (stats != null) {
+      int ord = stats.ord(term);
+      docFreq = ord == -1 ? 0 : stats.docFreq(ord);
+    } else {
+      docFreq = termsEnum.seekExact(term) ? termsEnum.docFreq() : 0;
+    }
+    id = ids.add(term);
+    if (id >= docFreqs.length) {
+      docFreqs = ArrayUtil.grow(docFreqs, id + 1);
+      logIdfs = ArrayUtil.grow(logIdfs, docFreqs.length);
+    }
+    docFreqs[id] = docFreq;
+    logIdfs[id] = Math.log10(idfOf(docFreq));
+    return id;
+  }
+
+  int docFreq(int id) {
+    return docFreqs[id];
+  }
+
+  double idf(int id) {
+    return idfOf(docFreqs[id]);
+  }
+
+  double logIdf(int id) {
+    return logIdfs[id];
+  }
+
+  private double idfOf(int docFreq) {
+    return (double) numDocs / (double) docFreq;
+  }
+}
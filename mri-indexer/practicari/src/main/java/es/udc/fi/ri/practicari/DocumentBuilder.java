@@ -0,0 +1,330 @@
+package es.udc.fi.ri.practicari;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.demo.knn.KnnVectorDict;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.DateTools;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DoublePoint;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.KnnVectorField;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.VectorSimilarityFunction;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Builds the documents of {@link IndexFiles}. Every document a builder returns is the same {@link
+ * Document} holding the same fields, whose values are replaced for each file, together with the
+ * reader that streams the contents and the embedding vector. A builder must therefore be used by
+ * a single thread, and its document must be added to the index before the next one is built.
+ */
+final class DocumentBuilder {
+  private final Document doc = new Document();
+  /* Document of a file whose contents are already indexed, sharing the metadata fields of doc. */
+  private final Document aliasDoc = new Document();
+  private final ContentReader contents;
+  /* Hashes the contents ahead of indexing in -dedup runs, null otherwise. */
+  private final ContentReader fingerprinter;
+  private final boolean contentsStored;
+
+  private final Field pathField = new StringField("path", "", Field.Store.YES);
+  private final LongPoint modifiedField = new LongPoint("modified", 0L);
+  private final ContentsField contentsField;
+  private final Field typeField = new StringField("type", "", Field.Store.YES);
+  private final DoublePoint sizeField = new DoublePoint("sizeKB", 0d);
+  private final StoredField storedSizeField = new StoredField("sizeKB", 0d);
+  private final Field sizeValues = new NumericDocValuesField(ChangeDetector.SIZE_FIELD, 0L);
+  private final Field modifiedValues = new NumericDocValuesField(ChangeDetector.MODIFIED_FIELD, 0L);
+  private final Field creationTimeField = new StringField("creationTime", "", Field.Store.YES);
+  private final Field lastAccessTimeField = new StringField("lastAccessTime", "", Field.Store.YES);
+  private final Field lastModifiedTimeField =
+      new StringField("lastModifiedTime", "", Field.Store.YES);
+  private final Field creationTimeLuceneField =
+      new StringField("creationTimeLucene", "", Field.Store.YES);
+  private final Field lastAccessTimeLuceneField =
+      new StringField("lastAccessTimeLucene", "", Field.Store.YES);
+  private final Field lastModifiedTimeLuceneField =
+      new StringField("lastModifiedTimeLucene", "", Field.Store.YES);
+  private final Field aliasOfField = new StringField("aliasOf", "", Field.Store.YES);
+  private final Field aliasHashField = new StringField("hash", "", Field.Store.YES);
+
+  /**
+   * @param vectorDict Dictionary of the embedding vectors, or null
+   * @param settings Settings of the run; contentsStored, contentsTermVectors, nlines, dedup and
+   *     signatures are used
+   * @param hostname Value of the "hostname" field
+   */
+  DocumentBuilder(KnnVectorDict vectorDict, IndexSettings settings, String hostname) {
+    this.contentsStored = settings.contentsStored;
+    MessageDigest digest = contentsStored ? null : sha256();
+    this.contents = new ContentReader(InputStream.nullInputStream(), settings.nlines, digest);
+    this.fingerprinter = settings.dedup
+        ? new ContentReader(InputStream.nullInputStream(), settings.nlines, sha256())
+        : null;
+    float[] vector = vectorDict != null ? new float[vectorDict.getDimension()] : null;
+    FieldType contentsType =
+        IndexFiles.contentsType(settings.contentsStored, settings.contentsTermVectors);
+    Signatures signatures = settings.signatures ? new Signatures() : null;
+    this.contentsField = contentsStored
+        ? new ContentsField("", contentsType, vectorDict, vector, signatures)
+        : new ContentsField(contents, contentsType, vectorDict, vector, signatures);
+
+    // Add the path of the file as a field named "path".  Use a
+    // field that is indexed (i.e. searchable), but don't tokenize
+    // the field into separate words and don't index term frequency
+    // or positional information:
+    doc.add(pathField);
+
+    // Add the last modified date of the file a field named "modified".
+    // Use a LongPoint that is indexed (i.e. efficiently filterable with
+    // PointRangeQuery).  This indexes to milli-second resolution, which
+    // is often too fine.  You could instead create a number based on
+    // year/month/day/hour/minutes/seconds, down the resolution you require.
+    // For example the long value 2011021714 would mean
+    // February 17, 2011, 2-3 PM.
+    doc.add(modifiedField);
+
+    // Add the contents of the file to a field named "contents". The file is read
+    // once, through a bounded buffer, while the field is being tokenized; the same
+    // pass updates the content hash and the embedding vector, which is why the hash
+    // and vector fields must be added after this one.
+    // Note that the file is decoded as UTF-8.
+    // If that's not the case searching for special characters will fail.
+    doc.add(contentsField);
+    if (!contentsStored) {
+      doc.add(new HashField(contents));
+    }
+
+    addMetadata(doc, hostname);
+
+    // An alias has the metadata of its own file, and the path and hash of the file
+    // whose contents were indexed, but no contents or vector.
+    aliasDoc.add(pathField);
+    aliasDoc.add(modifiedField);
+    aliasDoc.add(aliasOfField);
+    aliasDoc.add(aliasHashField);
+    addMetadata(aliasDoc, hostname);
+
+    if (vector != null) {
+      // IndexWriter copies the vector, so the same array is refilled for every document
+      doc.add(new KnnVectorField("contents-vector", vector, VectorSimilarityFunction.DOT_PRODUCT));
+    }
+
+    if (signatures != null) {
+      // Near-duplicate signatures of the contents, also computed while they are tokenized
+      doc.add(new SimHashField(signatures));
+      doc.add(new MinHashField(signatures));
+    }
+  }
+
+  private void addMetadata(Document document, String hostname) {
+    // Same for every document of the run (and of this builder's thread)
+    document.add(new StringField("hostname", hostname, Field.Store.YES));
+    document.add(new StringField("thread", Thread.currentThread().getName(), Field.Store.YES));
+
+    document.add(typeField);
+    document.add(sizeField);
+    document.add(storedSizeField);
+    // Exact size and date, read by ChangeDetector in incremental runs
+    document.add(sizeValues);
+    document.add(modifiedValues);
+    document.add(creationTimeField);
+    document.add(lastAccessTimeField);
+    document.add(lastModifiedTimeField);
+    document.add(creationTimeLuceneField);
+    document.add(lastAccessTimeLuceneField);
+    document.add(lastModifiedTimeLuceneField);
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Returns the SHA-256 of the text of stream, the value the "hash" field of its document would
+   * have. The stream is read to the end but not closed. Only in -dedup runs.
+   */
+  String fingerprint(InputStream stream) throws IOException {
+    fingerprinter.reset(stream);
+    return fingerprinter.hexDigest();
+  }
+
+  /**
+   * Fills the document with the given file.
+   *
+   * @param file Path of the file
+   * @param stream Contents of the file; they are read while the document is being indexed
+   * @param stat Attributes of the file
+   * @return The document of this builder
+   */
+  Document build(Path file, InputStream stream, FileStat stat) throws IOException {
+    setMetadata(file, stat);
+    contents.reset(stream);
+    if (contentsStored) {
+      // Stored contents need the whole text as a String
+      contentsField.setStringValue(contents.readAll());
+    }
+    return doc;
+  }
+
+  /**
+   * Fills the alias document of a file with the same contents as another file already indexed.
+   *
+   * @param file Path of the file
+   * @param stat Attributes of the file
+   * @param hash SHA-256 of the contents, see {@link #fingerprint}
+   * @param original Path of the file whose document holds the contents
+   * @return The alias document of this builder
+   */
+  Document buildAlias(Path file, FileStat stat, String hash, String original) {
+    setMetadata(file, stat);
+    aliasHashField.setStringValue(hash);
+    aliasOfField.setStringValue(original);
+    return aliasDoc;
+  }
+
+  private void setMetadata(Path file, FileStat stat) {
+    long lastModified = stat.lastModified();
+    long creationTime = stat.attrs.creationTime().toMillis();
+    long lastAccessTime = stat.attrs.lastAccessTime().toMillis();
+
+    pathField.setStringValue(file.toString());
+    modifiedField.setLongValue(lastModified);
+
+    typeField.setStringValue(stat.type());
+
+    //Bytes a KB
+    double sizeKB = (double) stat.size() / 1024;
+    sizeField.setDoubleValue(sizeKB);
+    storedSizeField.setDoubleValue(sizeKB);
+    sizeValues.setLongValue(stat.size());
+    modifiedValues.setLongValue(lastModified);
+
+    creationTimeField.setStringValue(stat.attrs.creationTime().toString());
+    lastAccessTimeField.setStringValue(stat.attrs.lastAccessTime().toString());
+    lastModifiedTimeField.setStringValue(new Date(lastModified).toString());
+    creationTimeLuceneField.setStringValue(
+        DateTools.timeToString(creationTime, DateTools.Resolution.MILLISECOND));
+    lastAccessTimeLuceneField.setStringValue(
+        DateTools.timeToString(lastAccessTime, DateTools.Resolution.MILLISECOND));
+    lastModifiedTimeLuceneField.setStringValue(
+        DateTools.timeToString(lastModified, DateTools.Resolution.MILLISECOND));
+  }
+
+  /**
+   * The "contents" field. When a vector dictionary is given, its token stream also accumulates the
+   * embedding of the text into vector, and when signatures are given, it feeds them every term.
+   * The analyzer hands the same stream to a thread for every document, so the filters wrapping it
+   * are kept too.
+   */
+  private static final class ContentsField extends Field {
+    private final KnnVectorDict vectorDict;
+    private final float[] vector;
+    private final Signatures signatures;
+    private EmbeddingFilter filter;
+    private SignatureFilter signatureFilter;
+
+    ContentsField(ContentReader reader, FieldType type, KnnVectorDict vectorDict, float[] vector,
+        Signatures signatures) {
+      super("contents", reader, type);
+      this.vectorDict = vectorDict;
+      this.vector = vector;
+      this.signatures = signatures;
+    }
+
+    ContentsField(String value, FieldType type, KnnVectorDict vectorDict, float[] vector,
+        Signatures signatures) {
+      super("contents", value, type);
+      this.vectorDict = vectorDict;
+      this.vector = vector;
+      this.signatures = signatures;
+    }
+
+    @Override
+    public TokenStream tokenStream(Analyzer analyzer, TokenStream reuse) {
+      TokenStream stream = super.tokenStream(analyzer, reuse);
+      if (signatures != null) {
+        if (signatureFilter == null || !signatureFilter.wraps(stream)) {
+          signatureFilter = new SignatureFilter(stream, signatures);
+        }
+        stream = signatureFilter;
+      }
+      if (vector == null) {
+        return stream;
+      }
+      if (filter == null || !filter.wraps(stream)) {
+        filter = new EmbeddingFilter(stream, vectorDict, vector);
+      }
+      return filter;
+    }
+  }
+
+  /** The SimHash of the contents, resolved once they have been tokenized, like the hash field. */
+  private static final class SimHashField extends Field {
+    private final Signatures signatures;
+
+    SimHashField(Signatures signatures) {
+      super(Signatures.SIMHASH_FIELD, NumericDocValuesField.TYPE);
+      this.signatures = signatures;
+    }
+
+    @Override
+    public Number numericValue() {
+      return signatures.simHash();
+    }
+  }
+
+  /** The MinHash sketch of the contents, resolved once they have been tokenized. */
+  private static final class MinHashField extends Field {
+    private final Signatures signatures;
+
+    MinHashField(Signatures signatures) {
+      super(Signatures.MINHASH_FIELD, BinaryDocValuesField.TYPE);
+      this.signatures = signatures;
+    }
+
+    @Override
+    public BytesRef binaryValue() {
+      return signatures.minHash();
+    }
+  }
+
+  /**
+   * The "hash" field, whose value is the SHA-256 of the text read by a {@link ContentReader}. It is
+   * only known once the contents field has been consumed, so it is resolved when IndexWriter asks
+   * for it.
+   */
+  private static final class HashField extends Field {
+    private final ContentReader contents;
+
+    HashField(ContentReader contents) {
+      super("hash", "", StringField.TYPE_STORED);
+      this.contents = contents;
+    }
+
+    @Override
+    public String stringValue() {
+      try {
+        return contents.hexDigest();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+}
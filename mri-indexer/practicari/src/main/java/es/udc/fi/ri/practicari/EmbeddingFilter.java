@@ -0,0 +1,77 @@
+package es.udc.fi.ri.practicari;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.demo.knn.KnnVectorDict;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.VectorUtil;
+
+/**
+ * Adds up the dictionary vector of every token that goes through it, like the filter behind
+ * DemoEmbeddings, so that a document embedding is computed while the contents field is being
+ * indexed instead of analyzing the file a second time. The sum is normalized at the end of the
+ * stream, and cleared when the stream is reset, so a filter can be reused from one document to the
+ * next as long as its input is the same.
+ */
+final class EmbeddingFilter extends TokenFilter {
+  private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+  private final KnnVectorDict dict;
+  private final float[] result;
+  private final float[] scratchFloats;
+  private final byte[] scratchBytes;
+  private final FloatBuffer scratchBuffer;
+  private final BytesRefBuilder term = new BytesRefBuilder();
+
+  /**
+   * @param input Token stream of the contents field
+   * @param dict Dictionary the vectors are read from
+   * @param result Array of dict.getDimension() floats where the embedding is accumulated
+   */
+  EmbeddingFilter(TokenStream input, KnnVectorDict dict, float[] result) {
+    super(input);
+    this.dict = dict;
+    this.result = result;
+    scratchFloats = new float[result.length];
+    scratchBytes = new byte[result.length * Float.BYTES];
+    scratchBuffer = ByteBuffer.wrap(scratchBytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+  }
+
+  @Override
+  public boolean incrementToken() throws IOException {
+    if (!input.incrementToken()) {
+      return false;
+    }
+    term.copyChars(termAtt);
+    // The dictionary seeks a single shared input, so lookups from several workers must not overlap
+    synchronized (dict) {
+      dict.get(term.get(), scratchBytes);
+    }
+    scratchBuffer.rewind();
+    scratchBuffer.get(scratchFloats);
+    VectorUtil.add(result, scratchFloats);
+    return true;
+  }
+
+  /** Returns whether this filter wraps the given stream. */
+  boolean wraps(TokenStream stream) {
+    return input == stream;
+  }
+
+  @Override
+  public void reset() throws IOException {
+    super.reset();
+    Arrays.fill(result, 0f);
+  }
+
+  @Override
+  public void end() throws IOException {
+    super.end();
+    VectorUtil.l2normalize(result, false);
+  }
+}
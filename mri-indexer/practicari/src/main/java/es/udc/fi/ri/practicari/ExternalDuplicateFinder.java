@@ -0,0 +1,364 @@
+package es.udc.fi.ri.practicari;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.IntroSorter;
+import org.apache.lucene.util.PriorityQueue;
+
+/**
+ * Finds the documents with duplicate fingerprints when the fingerprints of the index do not fit in
+ * the heap. Records (fingerprint, leaf, doc) are collected in a buffer of fixed size, which is
+ * sorted and written to a run file through a memory-mapped window whenever it fills up. The runs
+ * are then merged k ways, reading each of them through its own window, and every record with the
+ * same fingerprint as the previous one sets the bit of its doc in the delete bitset of its leaf.
+ * At most {@link #MAX_MERGE_RUNS} runs are open at a time: when there are more, groups of them are
+ * first merged into longer runs, in as many passes as needed.
+ *
+ * <p>Records are sorted by fingerprint, then leaf and doc, so the document kept of each group is
+ * the first one in leaf order, as with the in-memory detection. Besides the buffer, the heap only
+ * holds the bitsets, one bit per document; the windows are mapped outside of it.
+ */
+final class ExternalDuplicateFinder implements Closeable {
+  /* A record is the two halves of the fingerprint and leaf << 32 | doc. */
+  static final int RECORD_LONGS = 3;
+  static final int RECORD_BYTES = RECORD_LONGS * Long.BYTES;
+  /* Bytes of a run mapped at a time, a whole number of records. */
+  static final int WINDOW_BYTES = RECORD_BYTES << 20;
+  /* Runs merged at once, each with its file and its window open. */
+  static final int MAX_MERGE_RUNS = 64;
+
+  private final Path spillDir;
+  private final long[] buffer;
+  private int count;
+  private final List<Path> runs = new ArrayList<>();
+  /* Runs written by spill(), those of the merge passes not counted. */
+  private int spills;
+  private int nextRun;
+  private long spillBytes;
+
+  /**
+   * @param spillDir Empty directory for the run files, removed on close
+   * @param bufferRecords Records sorted in memory before a run is written
+   */
+  ExternalDuplicateFinder(Path spillDir, int bufferRecords) {
+    this.spillDir = spillDir;
+    this.buffer = new long[bufferRecords * RECORD_LONGS];
+  }
+
+  /** Adds n records from batch, which may come from several threads. */
+  synchronized void add(long[] batch, int n) throws IOException {
+    int from = 0;
+    while (from < n) {
+      int take = Math.min(n - from, buffer.length / RECORD_LONGS - count);
+      System.arraycopy(batch, from * RECORD_LONGS, buffer, count * RECORD_LONGS, take * RECORD_LONGS);
+      count += take;
+      from += take;
+      if (count == buffer.length / RECORD_LONGS) {
+        spill();
+      }
+    }
+  }
+
+  int runs() {
+    return spills;
+  }
+
+  /** Bytes written to the runs, by the merge passes too. */
+  long spillBytes() {
+    return spillBytes;
+  }
+
+  /**
+   * Returns the delete bitset of every leaf once all records have been added.
+   *
+   * @param maxDocs maxDoc of every leaf, by leaf ordinal
+   * @param summary Receives the number of duplicates and of distinct fingerprints
+   */
+  FixedBitSet[] finish(int[] maxDocs, RemoveDuplicates.Summary summary) throws IOException {
+    FixedBitSet[] duplicates = new FixedBitSet[maxDocs.length];
+    for (int i = 0; i < maxDocs.length; i++) {
+      duplicates[i] = new FixedBitSet(maxDocs[i]);
+    }
+    if (runs.isEmpty()) {
+      // Everything fit in the buffer: no need to touch the disk
+      sort();
+      Cursor cursor = new BufferCursor(buffer, count);
+      collect(cursor, duplicates, summary);
+      return duplicates;
+    }
+    if (count > 0) {
+      spill();
+    }
+    while (runs.size() > MAX_MERGE_RUNS) {
+      List<Path> merged = new ArrayList<>();
+      for (int from = 0; from < runs.size(); from += MAX_MERGE_RUNS) {
+        List<Path> group = runs.subList(from, Math.min(runs.size(), from + MAX_MERGE_RUNS));
+        merged.add(group.size() == 1 ? group.get(0) : mergeRuns(group));
+      }
+      runs.clear();
+      runs.addAll(merged);
+    }
+    List<RunCursor> cursors = new ArrayList<>();
+    try {
+      collect(open(runs, cursors), duplicates, summary);
+    } finally {
+      IOUtils.close(cursors);
+    }
+    return duplicates;
+  }
+
+  /* Merges a group of runs into a new one and deletes them. */
+  private Path mergeRuns(List<Path> group) throws IOException {
+    long size = 0;
+    for (Path run : group) {
+      size += Files.size(run);
+    }
+    Path merged = newRun();
+    List<RunCursor> cursors = new ArrayList<>();
+    try (FileChannel channel = FileChannel.open(merged, StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      Cursor cursor = open(group, cursors);
+      // Windows hold whole records, and the runs hold exactly size bytes of them
+      for (long position = 0; position < size; position += WINDOW_BYTES) {
+        MappedByteBuffer window =
+            channel.map(FileChannel.MapMode.READ_WRITE, position, Math.min(WINDOW_BYTES, size - position));
+        while (window.hasRemaining() && cursor.next()) {
+          window.putLong(cursor.hi);
+          window.putLong(cursor.lo);
+          window.putLong(cursor.leafDoc);
+        }
+      }
+    } finally {
+      IOUtils.close(cursors);
+    }
+    for (Path run : group) {
+      Files.delete(run);
+    }
+    spillBytes += size;
+    return merged;
+  }
+
+  /* Opens every run of group, adding its cursor to cursors for the caller to close. */
+  private static Cursor open(List<Path> group, List<RunCursor> cursors) throws IOException {
+    PriorityQueue<Cursor> queue = new PriorityQueue<Cursor>(group.size()) {
+      @Override
+      protected boolean lessThan(Cursor a, Cursor b) {
+        return compare(a.hi, a.lo, a.leafDoc, b.hi, b.lo, b.leafDoc) < 0;
+      }
+    };
+    for (Path run : group) {
+      RunCursor cursor = new RunCursor(run);
+      cursors.add(cursor);
+      if (cursor.next()) {
+        queue.add(cursor);
+      }
+    }
+    return new MergeCursor(queue);
+  }
+
+  private Path newRun() {
+    return spillDir.resolve("run-" + nextRun++);
+  }
+
+  /* Marks every record with the fingerprint of the one before it. */
+  private static void collect(Cursor cursor, FixedBitSet[] duplicates, RemoveDuplicates.Summary summary)
+      throws IOException {
+    boolean first = true;
+    long hi = 0;
+    long lo = 0;
+    while (cursor.next()) {
+      if (!first && cursor.hi == hi && cursor.lo == lo) {
+        duplicates[(int) (cursor.leafDoc >>> 32)].set((int) cursor.leafDoc);
+        summary.duplicates++;
+      } else {
+        summary.distinct++;
+        hi = cursor.hi;
+        lo = cursor.lo;
+        first = false;
+      }
+    }
+  }
+
+  private static int compare(long hi1, long lo1, long leafDoc1, long hi2, long lo2, long leafDoc2) {
+    int cmp = Long.compareUnsigned(hi1, hi2);
+    if (cmp == 0) {
+      cmp = Long.compareUnsigned(lo1, lo2);
+    }
+    if (cmp == 0) {
+      cmp = Long.compare(leafDoc1, leafDoc2);
+    }
+    return cmp;
+  }
+
+  private void sort() {
+    new IntroSorter() {
+      private long pivotHi;
+      private long pivotLo;
+      private long pivotLeafDoc;
+
+      @Override
+      protected void setPivot(int i) {
+        pivotHi = buffer[i * RECORD_LONGS];
+        pivotLo = buffer[i * RECORD_LONGS + 1];
+        pivotLeafDoc = buffer[i * RECORD_LONGS + 2];
+      }
+
+      @Override
+      protected int comparePivot(int j) {
+        int o = j * RECORD_LONGS;
+        return ExternalDuplicateFinder.compare(pivotHi, pivotLo, pivotLeafDoc,
+            buffer[o], buffer[o + 1], buffer[o + 2]);
+      }
+
+      @Override
+      protected int compare(int i, int j) {
+        int a = i * RECORD_LONGS;
+        int b = j * RECORD_LONGS;
+        return ExternalDuplicateFinder.compare(buffer[a], buffer[a + 1], buffer[a + 2],
+            buffer[b], buffer[b + 1], buffer[b + 2]);
+      }
+
+      @Override
+      protected void swap(int i, int j) {
+        for (int k = 0; k < RECORD_LONGS; k++) {
+          long tmp = buffer[i * RECORD_LONGS + k];
+          buffer[i * RECORD_LONGS + k] = buffer[j * RECORD_LONGS + k];
+          buffer[j * RECORD_LONGS + k] = tmp;
+        }
+      }
+    }.sort(0, count);
+  }
+
+  /* Sorts the buffer and writes it to a new run, one mapped window at a time. */
+  private void spill() throws IOException {
+    sort();
+    Path run = newRun();
+    long size = (long) count * RECORD_BYTES;
+    try (FileChannel channel = FileChannel.open(run, StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      int i = 0;
+      for (long position = 0; position < size; position += WINDOW_BYTES) {
+        MappedByteBuffer window =
+            channel.map(FileChannel.MapMode.READ_WRITE, position, Math.min(WINDOW_BYTES, size - position));
+        while (window.hasRemaining()) {
+          window.putLong(buffer[i++]);
+        }
+      }
+    }
+    runs.add(run);
+    spills++;
+    spillBytes += size;
+    count = 0;
+  }
+
+  @Override
+  public void close() throws IOException {
+    IOUtils.rm(spillDir);
+  }
+
+  /** Iterates records in order; next() loads the following one into the fields. */
+  private abstract static class Cursor {
+    long hi;
+    long lo;
+    long leafDoc;
+
+    abstract boolean next() throws IOException;
+  }
+
+  private static final class BufferCursor extends Cursor {
+    private final long[] records;
+    private final int count;
+    private int i;
+
+    BufferCursor(long[] records, int count) {
+      this.records = records;
+      this.count = count;
+    }
+
+    @Override
+    boolean next() {
+      if (i == count) {
+        return false;
+      }
+      hi = records[i * RECORD_LONGS];
+      lo = records[i * RECORD_LONGS + 1];
+      leafDoc = records[i * RECORD_LONGS + 2];
+      i++;
+      return true;
+    }
+  }
+
+  /* Reads a run through a window mapped over the part being read. */
+  private static final class RunCursor extends Cursor implements Closeable {
+    private final FileChannel channel;
+    private final long size;
+    private long position;
+    private MappedByteBuffer window;
+
+    RunCursor(Path run) throws IOException {
+      this.channel = FileChannel.open(run, StandardOpenOption.READ);
+      this.size = Files.size(run);
+    }
+
+    @Override
+    boolean next() throws IOException {
+      if (window == null || !window.hasRemaining()) {
+        if (position == size) {
+          return false;
+        }
+        long length = Math.min(WINDOW_BYTES, size - position);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        position += length;
+      }
+      hi = window.getLong();
+      lo = window.getLong();
+      leafDoc = window.getLong();
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+
+  /* Merges the runs: the next record is always the head of the run on top of the queue. */
+  private static final class MergeCursor extends Cursor {
+    private final PriorityQueue<Cursor> queue;
+    private boolean started;
+
+    MergeCursor(PriorityQueue<Cursor> queue) {
+      this.queue = queue;
+    }
+
+    @Override
+    boolean next() throws IOException {
+      if (started) {
+        // Move the run whose head was returned last
+        if (queue.top().next()) {
+          queue.updateTop();
+        } else {
+          queue.pop();
+        }
+      }
+      started = true;
+      if (queue.size() == 0) {
+        return false;
+      }
+      Cursor top = queue.top();
+      hi = top.hi;
+      lo = top.lo;
+      leafDoc = top.leafDoc;
+      return true;
+    }
+  }
+}
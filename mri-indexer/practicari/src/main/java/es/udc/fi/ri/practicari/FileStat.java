@@ -0,0 +1,51 @@
+package es.udc.fi.ri.practicari;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Everything {@link IndexFiles} needs to know about a file from the file system, read with a
+ * single attribute call. Symbolic links take a second one to get the attributes of their target.
+ */
+final class FileStat {
+  /* Attributes of the file, or of its target if it is a symbolic link. */
+  final BasicFileAttributes attrs;
+  final boolean symbolicLink;
+
+  private FileStat(BasicFileAttributes attrs, boolean symbolicLink) {
+    this.attrs = attrs;
+    this.symbolicLink = symbolicLink;
+  }
+
+  static FileStat of(Path file) throws IOException {
+    BasicFileAttributes attrs =
+        Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+    if (attrs.isSymbolicLink()) {
+      return new FileStat(Files.readAttributes(file, BasicFileAttributes.class), true);
+    }
+    return new FileStat(attrs, false);
+  }
+
+  long size() {
+    return attrs.size();
+  }
+
+  long lastModified() {
+    return attrs.lastModifiedTime().toMillis();
+  }
+
+  /** Value of the "type" field. */
+  String type() {
+    if (symbolicLink) {
+      return "symbolic link";
+    } else if (attrs.isRegularFile()) {
+      return "regular file";
+    } else if (attrs.isDirectory()) {
+      return "directory";
+    }
+    return "other";
+  }
+}
@@ -0,0 +1,60 @@
+package es.udc.fi.ri.practicari;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Content fingerprints seen by the workers of a -dedup run, each with the path of the first file
+ * that had it. Only the first 128 bits of the SHA-256 "hash" are kept, two longs per entry, which
+ * is still far from any accidental collision.
+ *
+ * <p>Safe for concurrent use: of several workers offering the same fingerprint at once, exactly
+ * one gets to index it.
+ */
+final class FingerprintSet {
+  private final ConcurrentHashMap<Key, String> first = new ConcurrentHashMap<>();
+
+  /**
+   * Records hash as indexed from path unless it was seen before.
+   *
+   * @param hash Hex SHA-256 of the contents, as stored in the "hash" field
+   * @param path Path of the file being indexed
+   * @return null if path is the first with this hash, or the path of the first file otherwise
+   */
+  String putIfAbsent(String hash, String path) {
+    return first.putIfAbsent(new Key(hash), path);
+  }
+
+  /** Forgets hash if path was its first file, after path failed to be indexed. */
+  void remove(String hash, String path) {
+    first.remove(new Key(hash), path);
+  }
+
+  int size() {
+    return first.size();
+  }
+
+  private static final class Key {
+    private final long high;
+    private final long low;
+
+    Key(String hash) {
+      this.high = Long.parseUnsignedLong(hash.substring(0, 16), 16);
+      this.low = Long.parseUnsignedLong(hash.substring(16, 32), 16);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return high == other.high && low == other.low;
+    }
+
+    @Override
+    public int hashCode() {
+      // The bits of a digest are already uniformly spread
+      return (int) low;
+    }
+  }
+}
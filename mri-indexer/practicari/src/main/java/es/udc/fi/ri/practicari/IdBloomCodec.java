@@ -0,0 +1,35 @@
+package es.udc.fi.ri.practicari;
+
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.codecs.bloom.BloomFilteringPostingsFormat;
+import org.apache.lucene.codecs.lucene94.Lucene94Codec;
+
+/**
+ * The default codec with the postings of one id field behind a bloom filter per segment.
+ *
+ * <p>An incremental run looks every file up by path in each segment of the index through {@link
+ * ChangeDetector}, and a new file misses in all of them. The filter answers most of those misses
+ * from memory, without seeking the terms dictionary of the segment. The deletes of updateDocument
+ * do not go through it: IndexWriter resolves them by walking each segment's terms in order, which
+ * is already cheap. Other fields keep the default postings format.
+ *
+ * <p>The codec is still named Lucene94, and the field records BloomFilter as its postings format,
+ * so any reader with lucene-codecs on the classpath opens the index.
+ */
+final class IdBloomCodec {
+  private IdBloomCodec() {}
+
+  /** Returns the default codec with a bloom filter on the postings of idField. */
+  static Codec forField(String idField) {
+    return new Lucene94Codec() {
+      private final PostingsFormat idPostings =
+          new BloomFilteringPostingsFormat(super.getPostingsFormatForField(idField));
+
+      @Override
+      public PostingsFormat getPostingsFormatForField(String field) {
+        return field.equals(idField) ? idPostings : super.getPostingsFormatForField(field);
+      }
+    };
+  }
+}
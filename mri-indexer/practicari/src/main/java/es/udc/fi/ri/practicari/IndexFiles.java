@@ -20,88 +20,24 @@ import java.io.*;
 import java.net.InetAddress;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
-import java.nio.file.attribute.BasicFileAttributes;
-import java.nio.file.attribute.FileTime;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
-import org.apache.lucene.demo.knn.DemoEmbeddings;
 import org.apache.lucene.demo.knn.KnnVectorDict;
 import org.apache.lucene.document.*;
 import org.apache.lucene.index.*;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.IOUtils;
 
-class WorkerThread implements Runnable {
-
-  private final Path folder;
-  private final boolean create;
-  private final boolean contentsStored;
-  private final boolean contentsTermVectors;
-  private final int depth;
-  private final IndexFiles indexFiles;
-  private final String[] onlyFiles;
-  private final String[] notFiles;
-  private final int nlines;
-  //AÑADIR ATRIBUTO PARA LAS KEYS DE CONFIG.PROPERTIES
-
-  public WorkerThread(final Path folder, final boolean create, final int depth, final boolean contentsStored, final boolean contentsTermVectors, final IndexFiles indexFiles,  String[] onlyFiles, String[] notFiles, int nlines) {
-    this.folder = folder;
-    this.create = create;
-    this.depth = depth;
-    this.contentsStored = contentsStored;
-    this.contentsTermVectors = contentsTermVectors;
-    this.indexFiles = indexFiles;
-    this.onlyFiles = onlyFiles;
-    this.notFiles = notFiles;
-    this.nlines = nlines;
-  }
-
-  /**
-   * This is the work that the current thread will do when processed by the pool.
-   * In this case, it will only print some information.
-   */
-  @Override
-  public void run() {
-    System.out.printf("Soy el hilo '%s' y voy a indexar las entradas de la carpeta '%s'%n",
-            Thread.currentThread().getName(), folder);
-    Analyzer analyzer = new StandardAnalyzer();
-    IndexWriterConfig iwc = new IndexWriterConfig(analyzer);
-    if (create) {
-      // Create a new index in the directory, removing any
-      // previously indexed documents:
-      iwc.setOpenMode(OpenMode.CREATE);
-    } else {
-      // Add new documents to an existing index:
-      iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
-    }
-    Directory dir = null;
-    try {
-      dir = FSDirectory.open(Paths.get(Thread.currentThread().getName() + "-" + folder.getFileName()));
-    } catch (IOException e) {
-      e.printStackTrace();
-    }
-    try (IndexWriter iwriter = new IndexWriter(dir, iwc)) {
-      indexFiles.indexDocs(iwriter, folder, depth, contentsStored, contentsTermVectors, onlyFiles, notFiles, nlines);
-      indexFiles.addDir(dir);
-      System.out.printf("Soy el hilo '%s' y he acabado de indexar las entradas de la carpeta '%s'%n",
-              Thread.currentThread().getName(), folder);
-    } catch (IOException e) {
-      System.out.println(" caught a " + e.getClass() + "\n with message: " + e.getMessage());
-    } catch (Exception e) {
-      e.printStackTrace();
-    }
-  }
-
-}
-
 /**
  * Index all text files under a directory.
  *
@@ -111,19 +47,60 @@ class WorkerThread implements Runnable {
 public class IndexFiles implements AutoCloseable {
   static final String KNN_DICT = "knn-dict";
 
-  // Calculates embedding vectors for KnnVector search
-  private final DemoEmbeddings demoEmbeddings;
+  // Provides the embedding vectors for KnnVector search
   private final KnnVectorDict vectorDict;
-  private List<Directory> dirList;
-
-  /* Indexed, tokenized, stored. */
+  private final IndexSettings settings;
+  private final List<Directory> dirList;
+  /* One temporary index per worker thread in per-thread mode, merged into the final index by main. */
+  private final Map<Thread, IndexWriter> threadWriters;
+  /* Writer used by every worker in shared mode, null in per-thread mode. */
+  private IndexWriter sharedWriter;
+  /* Writer of every shard when the output is sharded, null otherwise. */
+  private IndexWriter[] shardWriters;
+  private Path tempRoot;
+  private LongAdder tempBytesWritten;
+  /* Snapshot of the index before an incremental run, null otherwise. */
+  private ChangeDetector changes;
+  /* Records the directories done in checkpointed or resumed runs, null otherwise. */
+  private Checkpointer checkpointer;
+  private final IndexMetrics metrics;
+  /* Per-file log lines, null unless verbose. */
+  private final AsyncLog log;
+  /* Number of workers allowed to index at once while auto-tuning, null otherwise. */
+  private final AutoTuner.Limiter activeWorkers;
+  /* Contents indexed so far in -dedup runs, null otherwise. */
+  private final FingerprintSet fingerprints;
+  /* Reusable document of each worker thread. */
+  private final ThreadLocal<DocumentBuilder> builders;
+
+  /* Files handled by a single fork-join task before it stops splitting its share. */
+  static final int FILES_PER_TASK = 16;
+
+  /* Indexed, tokenized, not stored. */
   public static final FieldType FIELD_TYPE = new FieldType();
 
   static final IndexOptions options = IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS;
 
+  /* Frozen types of the contents field, by contentsStored | contentsTermVectors << 1. */
+  private static final FieldType[] CONTENTS_TYPES = new FieldType[4];
+
   static {
     FIELD_TYPE.setIndexOptions(options);
     FIELD_TYPE.setTokenized(true);
+    FIELD_TYPE.freeze();
+    for (int i = 0; i < CONTENTS_TYPES.length; i++) {
+      FieldType type = new FieldType(FIELD_TYPE);
+      type.setStored((i & 1) != 0);
+      type.setStoreTermVectors((i & 2) != 0);
+      type.setStoreTermVectorPositions((i & 2) != 0);
+      type.freeze();
+      CONTENTS_TYPES[i] = type;
+    }
+  }
+
+  /** Returns the type of the contents field for the given options. */
+  static FieldType contentsType(boolean contentsStored, boolean contentsTermVectors) {
+    return CONTENTS_TYPES[(contentsStored ? 1 : 0) | (contentsTermVectors ? 2 : 0)];
   }
 
   public void addDir(Directory dir) {
@@ -131,15 +108,18 @@ public class IndexFiles implements AutoCloseable {
   }
 
 
-  private IndexFiles(KnnVectorDict vectorDict) throws IOException {
-    if (vectorDict != null) {
-      this.vectorDict = vectorDict;
-      demoEmbeddings = new DemoEmbeddings(vectorDict);
-    } else {
-      this.vectorDict = null;
-      demoEmbeddings = null;
-    }
-    dirList = new ArrayList<Directory>();
+  private IndexFiles(KnnVectorDict vectorDict, IndexSettings settings, IndexMetrics metrics)
+          throws IOException {
+    this.vectorDict = vectorDict;
+    this.settings = settings;
+    this.metrics = metrics;
+    this.log = settings.verbose ? new AsyncLog(System.out) : null;
+    this.activeWorkers = settings.autoTuneSeconds > 0 ? new AutoTuner.Limiter(settings.numThreads) : null;
+    dirList = Collections.synchronizedList(new ArrayList<Directory>());
+    threadWriters = new ConcurrentHashMap<>();
+    fingerprints = settings.dedup ? new FingerprintSet() : null;
+    String hostname = InetAddress.getLocalHost().getHostName();
+    builders = ThreadLocal.withInitial(() -> new DocumentBuilder(vectorDict, settings, hostname));
   }
 
   public List<Directory> getDirList() {
@@ -148,7 +128,10 @@ public class IndexFiles implements AutoCloseable {
 
   public static String sha256(String input) throws NoSuchAlgorithmException {
     MessageDigest md = MessageDigest.getInstance("SHA-256");
-    byte[] hash = md.digest(input.getBytes(StandardCharsets.UTF_8));
+    return toHex(md.digest(input.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  static String toHex(byte[] hash) {
     StringBuilder hexString = new StringBuilder();
     for (byte b : hash) {
       String hex = Integer.toHexString(0xff & b);
@@ -162,18 +145,23 @@ public class IndexFiles implements AutoCloseable {
   public static void main(String[] args) throws Exception {
     String usage =
         "java org.apache.lucene.demo.IndexFiles"
-            + " [-index INDEX_PATH] [-docs DOCS_PATH] [-update] [-knn_dict DICT_PATH] [-numThreads NUM] [-depth NUM] [-contentsStored] [-contentsTermVectors]\n\n"
+            + " [-index INDEX_PATH] [-docs DOCS_PATH] [-update | -incremental | -resume] [-checkpoint SECONDS] [-shards NUM] [-dedup alias|skip] [-reconcile] [-knn_dict DICT_PATH] [-numThreads NUM] [-depth NUM] [-contentsStored] [-contentsTermVectors] [-signatures] [-idBloom]"
+            + " [-writerMode shared|perThread] [-ramBufferMB NUM] [-ioReport CSV_PATH]"
+            + " [-pipeline [-readThreads NUM] [-maxInFlightMB NUM]]"
+            + " [-verbose] [-progress SECONDS] [-metricsReport JSON_OR_CSV_PATH]"
+            + " [-autoTune SECONDS [-autoTuneBounds ramMB=MIN:MAX,workers=MIN:MAX,mergeThreads=MIN:MAX,segmentsPerTier=MIN:MAX]]\n\n"
             + "This indexes the documents in DOCS_PATH, creating a Lucene index"
             + "in INDEX_PATH that can be searched with SearchFiles\n"
-            + "IF DICT_PATH contains a KnnVector dictionary, the index will also support KnnVector search";
+            + "IF DICT_PATH contains a KnnVector dictionary, the index will also support KnnVector search\n"
+            + "With -shards, INDEX_PATH holds NUM indexes (see ShardSet) that SearchShards, RemoveDuplicates"
+            + " and TopTermsInDocs read as one\n"
+            + "With -idBloom, the path field is written with a bloom filter per segment, which speeds up the lookups"
+            + " of -incremental; the index can then only be read with lucene-codecs on the classpath";
     String indexPath = "index";
     String docsPath = null;
     String vectorDictSource = null;
-    int numThreads = 0;
-    int depth = -1;
-    boolean create = true;
-    boolean contentsStored = false;
-    boolean contentsTermVectors = false;
+    IndexSettings settings = new IndexSettings();
+    boolean createGiven = false;
     for (int i = 0; i < args.length; i++) {
       switch (args[i]) {
         case "-index":
@@ -186,33 +174,165 @@ public class IndexFiles implements AutoCloseable {
           vectorDictSource = args[++i];
           break;
         case "-update":
-          create = false;
+          settings.create = false;
+          break;
+        case "-incremental":
+          settings.create = false;
+          settings.incremental = true;
+          break;
+        case "-reconcile":
+          settings.reconcile = true;
+          break;
+        case "-resume":
+          settings.create = false;
+          settings.incremental = true;
+          settings.resume = true;
+          break;
+        case "-checkpoint":
+          settings.checkpointSeconds = Integer.parseInt(args[++i]);
           break;
         case "-create":
-          create = true;
+          settings.create = true;
+          createGiven = true;
+          break;
+        case "-dedup":
+          String dedupMode = args[++i];
+          if (dedupMode.equals("alias")) {
+            settings.dedupAliases = true;
+          } else if (dedupMode.equals("skip")) {
+            settings.dedupAliases = false;
+          } else {
+            throw new IllegalArgumentException("unknown dedup mode " + dedupMode);
+          }
+          settings.dedup = true;
+          break;
+        case "-shards":
+          settings.shards = Integer.parseInt(args[++i]);
           break;
         case "-numThreads":
-          numThreads = Integer.parseInt(args[++i]);
+          settings.numThreads = Integer.parseInt(args[++i]);
           break;
         case "-depth":
-          depth = Integer.parseInt(args[++i]);
+          settings.depth = Integer.parseInt(args[++i]);
           break;
         case "-contentsStored":
-          contentsStored = true;
+          settings.contentsStored = true;
           break;
         case "-contentsTermVectors":
-          contentsTermVectors = true;
+          settings.contentsTermVectors = true;
+          break;
+        case "-signatures":
+          settings.signatures = true;
+          break;
+        case "-idBloom":
+          settings.idBloom = true;
+          break;
+        case "-writerMode":
+          String writerMode = args[++i];
+          if (writerMode.equals("shared")) {
+            settings.sharedWriter = true;
+          } else if (writerMode.equals("perThread")) {
+            settings.sharedWriter = false;
+          } else {
+            throw new IllegalArgumentException("unknown writer mode " + writerMode);
+          }
+          break;
+        case "-ramBufferMB":
+          settings.ramBufferMB = Double.parseDouble(args[++i]);
+          break;
+        case "-pipeline":
+          settings.pipeline = true;
+          break;
+        case "-readThreads":
+          settings.readThreads = Integer.parseInt(args[++i]);
+          break;
+        case "-maxInFlightMB":
+          settings.maxInFlightMB = Integer.parseInt(args[++i]);
+          break;
+        case "-ioReport":
+          settings.ioReport = args[++i];
+          break;
+        case "-verbose":
+          settings.verbose = true;
+          break;
+        case "-progress":
+          settings.progressSeconds = Integer.parseInt(args[++i]);
+          break;
+        case "-metricsReport":
+          settings.metricsReport = args[++i];
+          break;
+        case "-autoTune":
+          settings.autoTuneSeconds = Integer.parseInt(args[++i]);
+          break;
+        case "-autoTuneBounds":
+          settings.autoTuneBounds = AutoTuner.Bounds.parse(args[++i]);
           break;
         default:
           throw new IllegalArgumentException("unknown parameter " + args[i]);
       }
     }
 
-    if (numThreads <= 0) {
-      numThreads = Runtime.getRuntime().availableProcessors();
+    if (settings.numThreads <= 0) {
+      settings.numThreads = Runtime.getRuntime().availableProcessors();
+    }
+
+    // The in-flight budget is counted in KB by an int semaphore
+    if (settings.readThreads <= 0 || settings.maxInFlightMB <= 0
+        || settings.maxInFlightMB > Integer.MAX_VALUE / 1024) {
+      System.err.println("Usage: " + usage);
+      System.exit(1);
+    }
+
+    if (settings.incremental && !settings.sharedWriter) {
+      throw new IllegalArgumentException("-incremental and -resume require -writerMode shared");
+    }
+
+    if (settings.checkpointSeconds > 0 && !settings.sharedWriter) {
+      // Per-thread indexes only reach the final index at the end of the run
+      throw new IllegalArgumentException("-checkpoint requires -writerMode shared");
+    }
+
+    if (settings.resume && createGiven) {
+      // Creating would wipe the index that -resume continues from
+      throw new IllegalArgumentException("-resume cannot be combined with -create");
+    }
+
+    // Documents are routed by the number of shards, so an existing shard set must keep it
+    int existingShards = ShardSet.numShards(Paths.get(indexPath));
+    if (!settings.create && existingShards > 0) {
+      if (settings.shards > 1 && settings.shards != existingShards) {
+        throw new IllegalArgumentException(
+                indexPath + " has " + existingShards + " shards, cannot update it with -shards " + settings.shards);
+      }
+      settings.shards = existingShards;
+    }
+
+    if (settings.shards > 1) {
+      if (!settings.sharedWriter) {
+        throw new IllegalArgumentException("-shards requires -writerMode shared");
+      }
+      if (settings.checkpointSeconds > 0 || settings.resume || settings.autoTuneSeconds > 0) {
+        // Each of them drives a single writer
+        throw new IllegalArgumentException("-checkpoint, -resume and -autoTune do not support shards");
+      }
     }
 
-    if (depth == 0) {
+    if (settings.dedup && !settings.create) {
+      // Files indexed by earlier runs are not in the fingerprint set, and an update of
+      // the first file of some contents would leave its aliases pointing at other contents
+      throw new IllegalArgumentException("-dedup requires a new index (-create)");
+    }
+
+    if (settings.autoTuneSeconds > 0) {
+      if (!settings.sharedWriter) {
+        throw new IllegalArgumentException("-autoTune requires -writerMode shared");
+      }
+      if (settings.autoTuneBounds == null) {
+        settings.autoTuneBounds = new AutoTuner.Bounds();
+      }
+    }
+
+    if (settings.depth == 0) {
       System.exit(0);
     }
 
@@ -250,43 +370,40 @@ public class IndexFiles implements AutoCloseable {
       throw new Exception("onlyLines no es un único número entero.");
     }
 
-    String[] onlyFiles = null;
     if(onlyFilesString != null && !onlyFilesString.isEmpty()){
-      onlyFiles = onlyFilesString.split("\\s+");
+      settings.onlyFiles = onlyFilesString.split("\\s+");
     }
-    String[] notFiles = null;
     if(notFilesString != null && !notFilesString.isEmpty()){
-      notFiles = notFilesString.split("\\s+");
+      settings.notFiles = notFilesString.split("\\s+");
     }
-    int nlines = -1;
     if(onlyLines != null && !onlyLines.isEmpty()){
-      nlines = Integer.parseInt(onlyLines);
+      settings.nlines = Integer.parseInt(onlyLines);
     }
 
     Date start = new Date();
     try {
       System.out.println("Indexing to directory '" + indexPath + "'...");
 
-      Directory dir = FSDirectory.open(Paths.get(indexPath));
-      Analyzer analyzer = new StandardAnalyzer();
-      IndexWriterConfig iwc = new IndexWriterConfig(analyzer);
-
-      if (create) {
-        // Create a new index in the directory, removing any
-        // previously indexed documents:
-        iwc.setOpenMode(OpenMode.CREATE);
-      } else {
-        // Add new documents to an existing index:
-        iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
+      LongAdder bytesWritten = new LongAdder();
+      Directory dir = new CountingDirectory(FSDirectory.open(Paths.get(indexPath)), bytesWritten);
+      IndexMetrics metrics = new IndexMetrics();
+      IndexWriterConfig iwc = writerConfig(settings, metrics);
+      ConcurrentMergeScheduler cms = (ConcurrentMergeScheduler) iwc.getMergeScheduler();
+
+      // Every shard is an index of its own under the index path, next to the vector dictionary
+      Directory[] indexDirs = {dir};
+      if (settings.shards > 1) {
+        ShardSet.create(Paths.get(indexPath), settings.shards);
+        indexDirs = new Directory[settings.shards];
+        for (int i = 0; i < indexDirs.length; i++) {
+          indexDirs[i] = new CountingDirectory(
+                  FSDirectory.open(ShardSet.shardPath(Paths.get(indexPath), i)), bytesWritten);
+        }
+      } else if (settings.create) {
+        // A new single index replaces the shard set that may be there
+        Files.deleteIfExists(Paths.get(indexPath).resolve(ShardSet.MANIFEST));
       }
 
-      // Optional: for better indexing performance, if you
-      // are indexing many documents, increase the RAM
-      // buffer.  But if you do this, increase the max heap
-      // size to the JVM (eg add -Xmx512m or -Xmx1g):
-      //
-      // iwc.setRAMBufferSizeMB(256.0);
-
       KnnVectorDict vectorDictInstance = null;
       long vectorDictSize = 0;
       if (vectorDictSource != null) {
@@ -295,10 +412,71 @@ public class IndexFiles implements AutoCloseable {
         vectorDictSize = vectorDictInstance.ramBytesUsed();
       }
 
-      List<Directory> dirList;
-      try (IndexFiles indexFiles = new IndexFiles(vectorDictInstance)) {
-        indexFiles.createThreads(docDir, numThreads, create, depth, contentsStored, contentsTermVectors, indexFiles, onlyFiles, notFiles, nlines);
-        dirList = indexFiles.getDirList();
+      metrics.start(settings.progressSeconds);
+      try (IndexFiles indexFiles = new IndexFiles(vectorDictInstance, settings, metrics)) {
+        if (settings.sharedWriter) {
+          // In incremental mode, files are compared against the index as it was
+          // before this run, so the snapshot must be opened before any change.
+          ChangeDetector changes = settings.incremental ? openChanges(indexDirs) : null;
+          Set<String> resumed = settings.resume
+                  ? Checkpointer.readDone(dir, docDir)
+                  : Collections.emptySet();
+          IndexWriter[] writers = new IndexWriter[indexDirs.length];
+          try {
+            writers[0] = new IndexWriter(indexDirs[0], iwc);
+            for (int i = 1; i < writers.length; i++) {
+              writers[i] = new IndexWriter(indexDirs[i], writerConfig(settings, metrics));
+            }
+            // Checkpoints and auto-tuning are only allowed on a single index
+            IndexWriter writer = writers[0];
+            Checkpointer checkpointer = null;
+            if (settings.checkpointSeconds > 0 || settings.resume) {
+              checkpointer = new Checkpointer(writer, docDir, resumed);
+              if (settings.checkpointSeconds > 0) {
+                checkpointer.start(settings.checkpointSeconds);
+              }
+            }
+            AutoTuner tuner = settings.autoTuneSeconds > 0
+                    ? indexFiles.autoTune(writer, cms)
+                    : null;
+            try {
+              indexFiles.indexTree(docDir, writers, changes, checkpointer);
+            } finally {
+              if (tuner != null) {
+                tuner.stop();
+              }
+            }
+            reconcile(writers, docDir, settings);
+            if (checkpointer != null) {
+              checkpointer.finish();
+            }
+            for (IndexWriter shardWriter : writers) {
+              shardWriter.commit();
+            }
+          } finally {
+            IOUtils.close(writers);
+            IOUtils.close(changes);
+          }
+        } else {
+          // Each worker builds its own index under a fresh temporary directory,
+          // which is merged into the final index and then removed.
+          Path tempRoot = Files.createTempDirectory(
+                  Paths.get(indexPath).toAbsolutePath().getParent(), "IndexFiles-");
+          try {
+            indexFiles.indexTree(docDir, tempRoot, bytesWritten);
+            try (IndexWriter writer = new IndexWriter(dir, iwc)) {
+              Directory[] dirs = indexFiles.getDirList().toArray(new Directory[0]);
+              // addIndexes only appends, so the old copies of re-indexed files go first
+              deleteReindexed(writer, dirs, settings);
+              writer.addIndexes(dirs);
+              reconcile(new IndexWriter[] {writer}, docDir, settings);
+              writer.commit();
+              IOUtils.close(dirs);
+            }
+          } finally {
+            IOUtils.rm(tempRoot);
+          }
+        }
         // NOTE: if you want to maximize search performance,
         // you can optionally call forceMerge here.  This can be
         // a terribly costly operation, so generally it's only
@@ -307,42 +485,25 @@ public class IndexFiles implements AutoCloseable {
         //
         // writer.forceMerge(1);
       } finally {
+        metrics.stop();
         IOUtils.close(vectorDictInstance);
       }
-      IndexWriter writer = null;
-      try {
-        writer = new IndexWriter(dir, iwc);
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
-
-      Directory[] dirs = new Directory[dirList.size()];
-      dirs = dirList.toArray(dirs);
-      try {
-        assert writer != null;
-        writer.addIndexes(dirs);
-      } catch (IOException e1) {
-        // TODO Auto-generated catch block
-        e1.printStackTrace();
-      }
-      try {
-        for(Directory d: dirs){
-          d.close();
-        }
-        writer.commit();
-        writer.close();
-      } catch (IOException e1) {
-        e1.printStackTrace();
-      }
 
       Date end = new Date();
-      try (IndexReader reader = DirectoryReader.open(dir)) {
+      try (IndexReader reader = settings.shards > 1
+              ? ShardSet.openReader(indexPath)
+              : DirectoryReader.open(dir)) {
         System.out.println(
             "Indexed "
                 + reader.numDocs()
                 + " documents in "
                 + (end.getTime() - start.getTime())
                 + " milliseconds");
+        writeIOReport(settings, reader.numDocs(), bytesWritten.sum(), end.getTime() - start.getTime());
+        metrics.printSummary();
+        if (settings.metricsReport != null) {
+          metrics.writeReport(Paths.get(settings.metricsReport), bytesWritten.sum());
+        }
         if (reader.numDocs() > 200
             && vectorDictSize < 1_000_000
             && System.getProperty("smoketester") == null) {
@@ -356,276 +517,498 @@ public class IndexFiles implements AutoCloseable {
     }
   }
 
-  void createThreads(Path path, int numThreads, final Boolean create, final int depth, final boolean contentsStored, final boolean contentsTermVectors, final IndexFiles indexFiles,  String[] onlyFiles, String[] notFiles, int nlines) {
+  /**
+   * Returns the configuration of a final IndexWriter. With shards, each of them gets its share of
+   * the RAM buffer.
+   */
+  static IndexWriterConfig writerConfig(IndexSettings settings, IndexMetrics metrics) {
+    Analyzer analyzer = new StandardAnalyzer();
+    IndexWriterConfig iwc = new IndexWriterConfig(analyzer);
 
-    final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    if (settings.create) {
+      // Create a new index in the directory, removing any
+      // previously indexed documents:
+      iwc.setOpenMode(OpenMode.CREATE);
+    } else {
+      // Add new documents to an existing index:
+      iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
+    }
 
-    try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(path)) {
+    // All workers add documents to this writer concurrently in shared mode, so
+    // give it a larger RAM buffer (fewer, bigger flushed segments; remember to
+    // raise -Xmx accordingly) and let merges run on several background threads.
+    iwc.setRAMBufferSizeMB(settings.ramBufferMB / Math.max(1, settings.shards));
+    iwc.setInfoStream(metrics.infoStream());
+    ConcurrentMergeScheduler cms = metrics.newMergeScheduler();
+    int mergeThreads = Math.max(1, Math.min(4, settings.numThreads / 2));
+    cms.setMaxMergesAndThreads(mergeThreads + 5, mergeThreads);
+    iwc.setMergeScheduler(cms);
+    if (settings.idBloom) {
+      iwc.setCodec(IdBloomCodec.forField("path"));
+    }
+    return iwc;
+  }
 
-      /* We process each subfolder in a new thread. */
-      for (final Path p : directoryStream) {
-        if (Files.isDirectory(p)) {
-          final Runnable worker = new WorkerThread(p, create, depth, contentsStored, contentsTermVectors, indexFiles, onlyFiles, notFiles, nlines);
-          /*
-           * Send the thread to the ThreadPool. It will be processed eventually.
-           */
-          executor.execute(worker);
+  /**
+   * Opens the snapshot an incremental run compares files against: the existing indexes among
+   * dirs, read as one. Returns null if there is none.
+   */
+  static ChangeDetector openChanges(Directory[] dirs) throws IOException {
+    List<IndexReader> readers = new ArrayList<>();
+    try {
+      for (Directory dir : dirs) {
+        if (DirectoryReader.indexExists(dir)) {
+          readers.add(DirectoryReader.open(dir));
         }
       }
-
-    } catch (final IOException e) {
-      e.printStackTrace();
-      System.exit(-1);
+    } catch (IOException e) {
+      IOUtils.closeWhileHandlingException(readers);
+      throw e;
     }
+    if (readers.isEmpty()) {
+      return null;
+    }
+    return new ChangeDetector(readers.size() == 1
+            ? readers.get(0)
+            : new MultiReader(readers.toArray(new IndexReader[0]), true));
+  }
 
-    /*
-     * Close the ThreadPool; no more jobs will be accepted, but all the previously
-     * submitted jobs will be processed.
-     */
-    executor.shutdown();
+  /* Starts tuning writer and the number of active workers for the first autoTuneSeconds. */
+  AutoTuner autoTune(IndexWriter writer, ConcurrentMergeScheduler cms) {
+    return new AutoTuner(writer, cms, metrics, settings.autoTuneBounds, activeWorkers,
+            settings.autoTuneSeconds);
+  }
 
-    /* Wait up to 1 hour to finish all the previously submitted jobs */
-    try {
-      executor.awaitTermination(1, TimeUnit.HOURS);
-    } catch (final InterruptedException e) {
-      e.printStackTrace();
-      System.exit(-2);
+  /**
+   * Threads started to index: numThreads, or as many as auto-tuning may use, only numThreads of
+   * which start active.
+   */
+  int workerThreads() {
+    return activeWorkers != null ? settings.autoTuneBounds.maxWorkers : settings.numThreads;
+  }
+
+  /**
+   * In update mode with -reconcile, deletes the documents of files no longer under docDir from
+   * the index, or from every shard.
+   */
+  static void reconcile(IndexWriter[] writers, Path docDir, IndexSettings settings) throws IOException {
+    if (settings.create || !settings.reconcile) {
+      return;
+    }
+    long orphans = 0;
+    for (IndexWriter writer : writers) {
+      orphans += Reconciler.deleteOrphans(writer, docDir);
     }
+    System.out.println("Deleted " + orphans + " documents of files no longer on disk");
+  }
 
-    System.out.println("Finished all threads");
+  /**
+   * In update mode, deletes from the final index every path that the temporary indexes in dirs
+   * hold, so that adding them replaces the old copies as updateDocument would. The paths of each
+   * temporary index are read in term order and deleted in batches of {@link
+   * Reconciler#DELETE_BATCH}.
+   */
+  static void deleteReindexed(IndexWriter writer, Directory[] dirs, IndexSettings settings)
+          throws IOException {
+    if (settings.create) {
+      return;
+    }
+    List<Term> batch = new ArrayList<>();
+    for (Directory dir : dirs) {
+      if (!DirectoryReader.indexExists(dir)) {
+        continue;
+      }
+      try (DirectoryReader reader = DirectoryReader.open(dir)) {
+        Terms terms = MultiTerms.getTerms(reader, "path");
+        TermsEnum paths = terms == null ? TermsEnum.EMPTY : terms.iterator();
+        for (BytesRef path = paths.next(); path != null; path = paths.next()) {
+          batch.add(new Term("path", BytesRef.deepCopyOf(path)));
+          if (batch.size() == Reconciler.DELETE_BATCH) {
+            writer.deleteDocuments(batch.toArray(new Term[0]));
+            batch.clear();
+          }
+        }
+      }
+    }
+    if (!batch.isEmpty()) {
+      writer.deleteDocuments(batch.toArray(new Term[0]));
+    }
+  }
 
+  /**
+   * Prints the bytes written by the run and, if {@link IndexSettings#ioReport} is set, appends them
+   * to that CSV file together with the writer mode and wall time, so that runs in both modes can
+   * be compared side by side.
+   */
+  static void writeIOReport(IndexSettings settings, int numDocs, long bytes, long millis)
+          throws IOException {
+    String mode = settings.sharedWriter ? "shared" : "perThread";
+    System.out.printf("Writer mode '%s' wrote %d bytes (%.1f MB) in %d milliseconds%n",
+            mode, bytes, bytes / (1024.0 * 1024.0), millis);
+    if (settings.ioReport == null) {
+      return;
+    }
+    Path report = Paths.get(settings.ioReport);
+    boolean header = !Files.exists(report);
+    try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(report, StandardCharsets.UTF_8,
+            StandardOpenOption.CREATE, StandardOpenOption.APPEND))) {
+      if (header) {
+        out.println("mode,threads,docs,bytesWritten,millis");
+      }
+      out.println(mode + "," + settings.numThreads + "," + numDocs + "," + bytes + "," + millis);
+    }
   }
 
   /**
-   * Indexes the given file using the given writer, or if a directory is given, recurses over files
-   * and directories found under the given directory.
+   * Indexes every accepted file under the given directory into a single writer shared by all the
+   * workers. IndexWriter is thread safe, so documents go straight to the final index.
    *
-   * <p>NOTE: This method indexes one document per input file. This is slow. For good throughput,
-   * put multiple documents into your input file(s). An example of this is in the benchmark module,
-   * which can create "line doc" files, one document per line, using the <a
-   * href="../../../../../contrib-benchmark/org/apache/lucene/benchmark/byTask/tasks/WriteLineDocTask.html"
-   * >WriteLineDocTask</a>.
-   *
-   * @param writer Writer to the index where the given file/dir info will be stored
-   * @param path The file to index, or the directory to recurse into to find files to index
-   * @throws IOException If there is a low-level I/O error
+   * @param path The directory to index, or a single file
+   * @param writers Writer to the final index, or to every shard of it
+   * @param changes Snapshot of the index used to skip unchanged files, or null to index them all
+   * @param checkpointer Records the directories done, and skips those of the resumed run; or null
    */
+  void indexTree(Path path, IndexWriter[] writers, ChangeDetector changes, Checkpointer checkpointer) {
+    this.sharedWriter = writers[0];
+    this.shardWriters = writers.length > 1 ? writers : null;
+    this.changes = changes;
+    this.checkpointer = checkpointer;
+    runPool(path);
+    if (changes != null) {
+      System.out.println("Skipped " + metrics.skipped() + " unchanged files");
+    }
+    printDuplicates();
+  }
 
-  void indexDocs(final IndexWriter writer, Path path, int maxDepth, boolean contentsStored, boolean contentsTermVectors, String[] onlyFiles, String[] notFiles, int nlines) throws Exception {
-
-    if (Files.isDirectory(path)) {
-      Files.walkFileTree(
-              path,
-              new SimpleFileVisitor<>() {
-                int currentDepth = 0;
-
-                @Override
-                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
-                  if (currentDepth == maxDepth) {
-                    return FileVisitResult.SKIP_SUBTREE;
-                  }
-                  currentDepth++;
-                  return FileVisitResult.CONTINUE;
-                }
-
-                @Override
-                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
-                  String fileName = file.getFileName().toString();
-                  if(notFiles != null){
-                    for (String s: notFiles) {
-                      if(fileName.endsWith(s)){
-                        return FileVisitResult.CONTINUE;
-                      }
-                    }
-                  }else if(onlyFiles != null){
-                    boolean b = false;
-                    for (String s: onlyFiles) {
-                      if(fileName.endsWith(s)){
-                        b = true;
-                      }
-                    }
-                    if(!b){
-                      return FileVisitResult.CONTINUE;
-                    }
-                  }
-                  try {
-                    indexDoc(writer, file, attrs.lastModifiedTime().toMillis(), contentsStored, contentsTermVectors, nlines);
-                  } catch (
-                          @SuppressWarnings("unused")
-                                  IOException ignore) {
-                    ignore.printStackTrace(System.err);
-                    // don't index files that can't be read.
-                  }
-                  return FileVisitResult.CONTINUE;
-                }
-
-                @Override
-                public FileVisitResult postVisitDirectory(Path dir, IOException exc) {
-                  currentDepth--;
-                  return FileVisitResult.CONTINUE;
-                }
-              });
-    } else {
-      indexDoc(writer, path, Files.getLastModifiedTime(path).toMillis(), contentsStored, contentsTermVectors, nlines);
+  /**
+   * Indexes every accepted file under the given directory giving each worker its own temporary
+   * index under tempRoot. The temporary directories are registered in {@link #getDirList()} so
+   * that main can merge them into the final index.
+   *
+   * @param path The directory to index, or a single file
+   * @param tempRoot Directory where the per-thread indexes are created
+   * @param bytesWritten Counter of the bytes written to the temporary indexes
+   */
+  void indexTree(Path path, Path tempRoot, LongAdder bytesWritten) {
+    this.sharedWriter = null;
+    this.tempRoot = tempRoot;
+    this.tempBytesWritten = bytesWritten;
+    runPool(path);
+    for (IndexWriter iwriter : threadWriters.values()) {
+      try {
+        iwriter.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
     }
+    threadWriters.clear();
+    printDuplicates();
   }
 
-  /** Indexes a single document */
-  void indexDoc(IndexWriter writer, Path file, long lastModified, boolean contentsStored, boolean contentsTermVectors, int onlyLines) throws IOException {
-    try (InputStream stream = Files.newInputStream(file)) {
+  private void printDuplicates() {
+    if (fingerprints != null) {
+      System.out.println((settings.dedupAliases ? "Aliased " : "Skipped ") + metrics.duplicates()
+              + " duplicate files of " + fingerprints.size() + " distinct contents");
+    }
+  }
 
-      // make a new, empty document
-      Document doc = new Document();
-
-      // Add the path of the file as a field named "path".  Use a
-      // field that is indexed (i.e. searchable), but don't tokenize
-      // the field into separate words and don't index term frequency
-      // or positional information:
-      Field pathField = new StringField("path", file.toString(), Field.Store.YES);
-      doc.add(pathField);
-
-      // Add the last modified date of the file a field named "modified".
-      // Use a LongPoint that is indexed (i.e. efficiently filterable with
-      // PointRangeQuery).  This indexes to milli-second resolution, which
-      // is often too fine.  You could instead create a number based on
-      // year/month/day/hour/minutes/seconds, down the resolution you require.
-      // For example the long value 2011021714 would mean
-      // February 17, 2011, 2-3 PM.
-      doc.add(new LongPoint("modified", lastModified));
-
-      // Add the contents of the file to a field named "contents".  Specify a Reader,
-      // so that the text of the file is tokenized and indexed, but not stored.
-      // Note that FileReader expects the file to be in UTF-8 encoding.
-      // If that's not the case searching for special characters will fail.
-      BufferedReader br = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
-      StringBuilder sb = new StringBuilder();
-      String line;
-      int cont = 0;
-      while ((line = br.readLine()) != null) {
-        if(cont == onlyLines){
-          break;
-        }
-        sb.append(line);
-        sb.append(System.lineSeparator());
-        ++cont;
+  /**
+   * Runs the work-stealing pool of {@link IndexSettings#numThreads} workers over the given path,
+   * or the staged {@link IndexPipeline} when {@link IndexSettings#pipeline} is set.
+   *
+   * <p>Work is split by directory and then by file: each directory becomes a task that forks one
+   * task per subdirectory and splits its own files into halves until at most {@link
+   * #FILES_PER_TASK} remain, so idle workers can steal from any part of the tree no matter how
+   * skewed it is. Files directly under the root are indexed too.
+   */
+  private void runPool(Path path) {
+    if (settings.pipeline) {
+      new IndexPipeline(this, settings, metrics, checkpointer).run(path);
+      System.out.println("Finished all threads");
+      return;
+    }
+    final ForkJoinPool pool = new ForkJoinPool(workerThreads());
+    metrics.gauge("queuedTasks", pool::getQueuedTaskCount);
+    try {
+      if (Files.isDirectory(path)) {
+        pool.invoke(new DirectoryTask(path, 0));
+      } else {
+        pool.invoke(new FileBatchTask(Collections.singletonList(path), 0, 1));
       }
+    } finally {
+      pool.shutdown();
+    }
 
-      FIELD_TYPE.setStored(contentsStored);
-      FIELD_TYPE.setStoreTermVectors(contentsTermVectors);
-      FIELD_TYPE.setStoreTermVectorPositions(contentsTermVectors);
+    System.out.println("Finished all threads");
+  }
 
-      doc.add(new Field("contents", sb.toString(), FIELD_TYPE));
+  /** Returns the writer of the shard of file, or else {@link #currentThreadWriter()}. */
+  IndexWriter writerFor(Path file) {
+    if (shardWriters != null) {
+      return shardWriters[ShardSet.shardOf(file.toString(), shardWriters.length)];
+    }
+    return currentThreadWriter();
+  }
 
-      if(!contentsStored){
-        String hash = sha256(sb.toString());
-        doc.add(
-                new StringField("hash", hash, Field.Store.YES)
-        );
+  /** Returns the writer the calling worker must use, creating its temporary index on first use. */
+  IndexWriter currentThreadWriter() {
+    if (sharedWriter != null) {
+      return sharedWriter;
+    }
+    return threadWriters.computeIfAbsent(Thread.currentThread(), thread -> {
+      IndexWriterConfig iwc = new IndexWriterConfig(new StandardAnalyzer());
+      // The temporary index always starts empty; in update mode the final writer deletes the old
+      // copies of its paths before adding it (see deleteReindexed).
+      iwc.setOpenMode(OpenMode.CREATE);
+      iwc.setInfoStream(metrics.infoStream());
+      iwc.setMergeScheduler(metrics.newMergeScheduler());
+      if (settings.idBloom) {
+        // addIndexes copies these segments as they are, filter included
+        iwc.setCodec(IdBloomCodec.forField("path"));
       }
-
-      doc.add(
-              new StringField("hostname", InetAddress.getLocalHost().getHostName(), Field.Store.YES)
-              );
-
-      doc.add(
-              new StringField("thread", Thread.currentThread().getName(), Field.Store.YES)
-      );
-
-      String type;
-      if(Files.isSymbolicLink(file)){
-        type = "symbolic link";
-      }else if(Files.isRegularFile(file)){
-        type = "regular file";
-      }else if(Files.isDirectory(file)){
-        type = "directory";
-      }else {
-        type = "other";
+      try {
+        Directory dir = new CountingDirectory(
+                FSDirectory.open(tempRoot.resolve(thread.getName())), tempBytesWritten);
+        IndexWriter iwriter = new IndexWriter(dir, iwc);
+        addDir(dir);
+        return iwriter;
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
       }
+    });
+  }
 
-      doc.add(
-              new StringField("type", type, Field.Store.YES)
-      );
+  /** Lists a directory, forking a task per subdirectory within depth and per batch of files. */
+  private final class DirectoryTask extends RecursiveAction {
+    private final Path dir;
+    private final int level;
 
-      long sizeBytes = 0;
-      try {
-        sizeBytes = Files.size(file);
+    DirectoryTask(Path dir, int level) {
+      this.dir = dir;
+      this.level = level;
+    }
+
+    @Override
+    protected void compute() {
+      if (checkpointer != null && checkpointer.isResumedDone(dir)) {
+        return;
+      }
+      List<RecursiveAction> subtasks = new ArrayList<>();
+      List<Path> files = new ArrayList<>();
+      try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(dir)) {
+        for (Path p : directoryStream) {
+          // Like Files.walkFileTree, symbolic links to directories are not followed
+          if (Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)) {
+            if (settings.acceptsDepth(level + 1)) {
+              subtasks.add(new DirectoryTask(p, level + 1));
+            }
+          } else if (settings.acceptsFile(p.getFileName().toString())) {
+            files.add(p);
+          }
+        }
       } catch (IOException e) {
-        e.printStackTrace();
+        // don't index directories that can't be read.
+        e.printStackTrace(System.err);
+        return;
+      }
+      if (!files.isEmpty()) {
+        subtasks.add(new FileBatchTask(files, 0, files.size()));
       }
+      invokeAll(subtasks);
+      if (checkpointer != null) {
+        checkpointer.markDone(dir);
+      }
+    }
+  }
+
+  /** Indexes files[from, to), splitting in halves while the range is larger than FILES_PER_TASK. */
+  private final class FileBatchTask extends RecursiveAction {
+    private final List<Path> files;
+    private final int from;
+    private final int to;
+
+    FileBatchTask(List<Path> files, int from, int to) {
+      this.files = files;
+      this.from = from;
+      this.to = to;
+    }
 
-      //Bytes a KB
-      double sizeKB = (double) sizeBytes / 1024;
-
-      //Agregar campo sizeKB al documento e indexarlo
-      Field sizeField = new DoublePoint("sizeKB", sizeKB);
-      doc.add(sizeField);
-
-      //Agregar campo sizeKB como stored
-      StoredField storedSizeField = new StoredField("sizeKB", sizeKB);
-      doc.add(storedSizeField);
-
-      BasicFileAttributes attr = Files.readAttributes(file, BasicFileAttributes.class);
-      FileTime creationTime = attr.creationTime();
-      FileTime lastAccessTime = attr.lastAccessTime();
-      FileTime lastModifiedTime = attr.lastModifiedTime();
-
-      Date creationTimeDate = new Date(creationTime.toMillis());
-      Date lastAccessTimeDate = new Date(lastAccessTime.toMillis());
-      Date lastModifiedTimeDate = new Date(lastModifiedTime.toMillis());
-
-      doc.add(
-              new StringField("creationTime", creationTime.toString(), Field.Store.YES)
-      );
-
-      doc.add(
-              new StringField("lastAccessTime", lastAccessTime.toString(), Field.Store.YES)
-      );
-
-      doc.add(
-              new StringField("lastModifiedTime", lastModifiedTimeDate.toString(), Field.Store.YES)
-      );
-
-      doc.add(
-              new StringField("creationTimeLucene", DateTools.dateToString(creationTimeDate, DateTools.Resolution.MILLISECOND), Field.Store.YES)
-      );
-
-      doc.add(
-              new StringField("lastAccessTimeLucene", DateTools.dateToString(lastAccessTimeDate, DateTools.Resolution.MILLISECOND), Field.Store.YES)
-      );
-
-      doc.add(
-              new StringField("lastModifiedTimeLucene", DateTools.dateToString(lastModifiedTimeDate, DateTools.Resolution.MILLISECOND), Field.Store.YES)
-      );
-
-      if (demoEmbeddings != null) {
-        try (InputStream in = Files.newInputStream(file)) {
-          float[] vector =
-              demoEmbeddings.computeEmbedding(
-                  new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)));
-          doc.add(
-              new KnnVectorField("contents-vector", vector, VectorSimilarityFunction.DOT_PRODUCT));
+    @Override
+    protected void compute() {
+      if (to - from > FILES_PER_TASK) {
+        int mid = (from + to) >>> 1;
+        invokeAll(new FileBatchTask(files, from, mid), new FileBatchTask(files, mid, to));
+        return;
+      }
+      for (int i = from; i < to; i++) {
+        Path file = files.get(i);
+        try {
+          FileStat stat = FileStat.of(file);
+          if (skipUnchanged(file, stat)) {
+            continue;
+          }
+          indexDoc(writerFor(file), file, stat);
+        } catch (
+                @SuppressWarnings("unused")
+                        IOException ignore) {
+          metrics.worker().failed();
+          ignore.printStackTrace(System.err);
+          // don't index files that can't be read.
         }
       }
+    }
+  }
 
-      if (writer.getConfig().getOpenMode() == OpenMode.CREATE) {
-        // New index, so we just add the document (no old document can be there):
-        System.out.println("adding " + file);
-        writer.addDocument(doc);
-      } else {
-        // Existing index (an old copy of this document may have been indexed) so
-        // we use updateDocument instead to replace the old one matching the exact
-        // path, if present:
-        System.out.println("updating " + file);
-        writer.updateDocument(new Term("path", file.toString()), doc);
+  /** In incremental runs, returns (and counts) whether the file is up to date in the index. */
+  boolean skipUnchanged(Path file, FileStat stat) throws IOException {
+    // Incremental runs always use the shared writer, or the shard writers
+    if (changes != null && isUpToDate(writerFor(file), file, stat)) {
+      metrics.worker().skipped();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns whether the index already holds the current content of the file, so that it can be
+   * skipped. Files whose size and modification time match the index are skipped without being
+   * read. If they differ but the file still has the content hash stored in the index (it was
+   * copied or touched), only the "fileSize" and "fileModified" doc values are updated, which
+   * leaves the stored metadata fields as they were when the content was indexed.
+   */
+  private boolean isUpToDate(IndexWriter writer, Path file, FileStat stat) throws IOException {
+    String path = file.toString();
+    long size = stat.size();
+    long lastModified = stat.lastModified();
+    switch (changes.check(path, size, lastModified)) {
+      case UNCHANGED:
+        return true;
+      case NEW:
+        return false;
+      default:
+        String hash = changes.storedHash(path);
+        if (hash == null) {
+          return false;
+        }
+        try (ContentReader contents = new ContentReader(Files.newInputStream(file), settings.nlines,
+                MessageDigest.getInstance("SHA-256"))) {
+          if (!hash.equals(contents.hexDigest())) {
+            return false;
+          }
+        } catch (NoSuchAlgorithmException e) {
+          throw new IllegalStateException(e);
+        }
+        writer.updateDocValues(new Term("path", path),
+                new NumericDocValuesField(ChangeDetector.SIZE_FIELD, size),
+                new NumericDocValuesField(ChangeDetector.MODIFIED_FIELD, lastModified));
+        return true;
+    }
+  }
+
+  /** Indexes a single document */
+  void indexDoc(IndexWriter writer, Path file, FileStat stat) throws IOException {
+    try (InputStream stream = Files.newInputStream(file)) {
+      indexDoc(writer, file, stream, stat);
+    }
+  }
+
+  /** Indexes a single document whose contents have already been opened (or read) as stream */
+  void indexDoc(IndexWriter writer, Path file, InputStream stream, FileStat stat) throws IOException {
+    if (activeWorkers == null) {
+      addDoc(writer, file, stream, stat);
+      return;
+    }
+    activeWorkers.acquireUninterruptibly();
+    try {
+      addDoc(writer, file, stream, stat);
+    } finally {
+      activeWorkers.release();
+    }
+  }
+
+  private void addDoc(IndexWriter writer, Path file, InputStream stream, FileStat stat) throws IOException {
+    long start = System.nanoTime();
+    // Each worker refills its own document instead of allocating a new one per file
+    DocumentBuilder builder = builders.get();
+    String hash = null;
+    if (fingerprints != null) {
+      hash = fingerprint(builder, file, stream);
+      String original = fingerprints.putIfAbsent(hash, file.toString());
+      if (original != null) {
+        addDuplicate(writer, builder, file, stat, hash, original);
+        return;
+      }
+    }
+    try {
+      addContents(writer, builder, file, stream, stat, start);
+    } catch (IOException | RuntimeException e) {
+      if (hash != null) {
+        // Let a later file with the same contents index them
+        fingerprints.remove(hash, file.toString());
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Hashes the contents of file before they are indexed, without consuming stream: contents read
+   * ahead are hashed in place, and a file being streamed is read twice.
+   */
+  private static String fingerprint(DocumentBuilder builder, Path file, InputStream stream)
+          throws IOException {
+    if (stream.markSupported()) {
+      stream.mark(Integer.MAX_VALUE);
+      String hash = builder.fingerprint(stream);
+      stream.reset();
+      return hash;
+    }
+    try (InputStream again = Files.newInputStream(file)) {
+      return builder.fingerprint(again);
+    }
+  }
+
+  /* Adds an alias of the document of original, or nothing if duplicates are skipped. */
+  private void addDuplicate(IndexWriter writer, DocumentBuilder builder, Path file, FileStat stat,
+          String hash, String original) throws IOException {
+    metrics.worker().duplicate();
+    if (!settings.dedupAliases) {
+      if (log != null) {
+        log.println("skipping " + file + ", same contents as " + original);
+      }
+      return;
+    }
+    if (log != null) {
+      log.println("adding " + file + " as an alias of " + original);
+    }
+    writer.addDocument(builder.buildAlias(file, stat, hash, original));
+  }
+
+  private void addContents(IndexWriter writer, DocumentBuilder builder, Path file, InputStream stream,
+          FileStat stat, long start) throws IOException {
+    Document doc = builder.build(file, stream, stat);
+    long built = System.nanoTime();
+
+    if (writer.getConfig().getOpenMode() == OpenMode.CREATE) {
+      // New index, so we just add the document (no old document can be there):
+      if (log != null) {
+        log.println("adding " + file);
+      }
+      writer.addDocument(doc);
+    } else {
+      // Existing index (an old copy of this document may have been indexed) so
+      // we use updateDocument instead to replace the old one matching the exact
+      // path, if present:
+      if (log != null) {
+        log.println("updating " + file);
       }
-    } catch (NoSuchAlgorithmException e) {
-      e.printStackTrace();
+      writer.updateDocument(new Term("path", file.toString()), doc);
     }
+    metrics.worker().indexed(stat.size(), built - start, System.nanoTime() - built);
   }
 
   @Override
   public void close() throws IOException {
-    IOUtils.close(vectorDict);
+    IOUtils.close(log, vectorDict);
   }
 }
 
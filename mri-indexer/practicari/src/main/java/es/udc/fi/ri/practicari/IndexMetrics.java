@@ -0,0 +1,374 @@
+package es.udc.fi.ri.practicari;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.util.InfoStream;
+
+/**
+ * Throughput counters of an indexing run.
+ *
+ * <p>Every thread that indexes gets its own {@link Worker}, whose counters only that thread
+ * updates, so recording a document never contends with other workers. Workers are grouped in
+ * stages by their thread name without its trailing number ("ForkJoinPool-1-worker",
+ * "pipeline-reader", ...). Flushes are timed from the IndexWriter info stream and merges by the
+ * merge scheduler returned by {@link #newMergeScheduler()}. Queue depths are sampled from the
+ * registered {@link #gauge gauges}.
+ *
+ * <p>Lucene analyzes the text while the document is added, so the analysis time is part of the
+ * addDocument time; "build" is the time spent filling the document before that.
+ */
+final class IndexMetrics {
+  private final long startNanos = System.nanoTime();
+  private final ConcurrentLinkedQueue<Worker> workers = new ConcurrentLinkedQueue<>();
+  private final ThreadLocal<Worker> currentWorker = ThreadLocal.withInitial(this::register);
+  private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+  private final Map<String, AtomicLong> gaugeMax = new ConcurrentHashMap<>();
+  private final LongAdder flushes = new LongAdder();
+  private final LongAdder flushNanos = new LongAdder();
+  private final LongAdder merges = new LongAdder();
+  private final LongAdder mergeNanos = new LongAdder();
+  private ScheduledExecutorService progress;
+  private long lastDocs;
+  private long lastBytes;
+  private long lastNanos = startNanos;
+
+  /** Returns the counters of the calling thread. */
+  Worker worker() {
+    return currentWorker.get();
+  }
+
+  private Worker register() {
+    Worker worker = new Worker(Thread.currentThread().getName());
+    workers.add(worker);
+    return worker;
+  }
+
+  /** Samples value in every progress line and keeps its maximum for the report. */
+  void gauge(String name, LongSupplier value) {
+    gauges.put(name, value);
+    gaugeMax.putIfAbsent(name, new AtomicLong());
+  }
+
+  /** Info stream that times the flushes of the writers it is given to. */
+  InfoStream infoStream() {
+    return new InfoStream() {
+      @Override
+      public void message(String component, String message) {
+        // DocumentsWriterPerThread reports "flush time 12.345 msec" once per segment
+        if (message.startsWith("flush time ")) {
+          int end = message.indexOf(" msec");
+          try {
+            double millis = Double.parseDouble(message.substring(11, end).replace(',', '.'));
+            flushes.increment();
+            flushNanos.add((long) (millis * 1_000_000));
+          } catch (RuntimeException e) {
+            // Not the message we expected; the flush is just not counted
+          }
+        }
+      }
+
+      @Override
+      public boolean isEnabled(String component) {
+        return "DWPT".equals(component);
+      }
+
+      @Override
+      public void close() {}
+    };
+  }
+
+  /** Merge scheduler that times the merges it runs. */
+  ConcurrentMergeScheduler newMergeScheduler() {
+    return new ConcurrentMergeScheduler() {
+      @Override
+      protected void doMerge(MergeSource mergeSource, MergePolicy.OneMerge merge)
+              throws IOException {
+        long start = System.nanoTime();
+        try {
+          super.doMerge(mergeSource, merge);
+        } finally {
+          merges.increment();
+          mergeNanos.add(System.nanoTime() - start);
+        }
+      }
+    };
+  }
+
+  /** Prints a progress line every given number of seconds, until {@link #stop()}. */
+  void start(int seconds) {
+    if (seconds <= 0) {
+      return;
+    }
+    progress = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "metrics-progress");
+      thread.setDaemon(true);
+      return thread;
+    });
+    progress.scheduleAtFixedRate(() -> System.out.println(progressLine()), seconds, seconds,
+            TimeUnit.SECONDS);
+  }
+
+  void stop() {
+    if (progress != null) {
+      progress.shutdownNow();
+      progress = null;
+    }
+  }
+
+  long docs() {
+    long docs = 0;
+    for (Worker worker : workers) {
+      docs += worker.docs.get();
+    }
+    return docs;
+  }
+
+  long flushes() {
+    return flushes.sum();
+  }
+
+  long mergeNanos() {
+    return mergeNanos.sum();
+  }
+
+  long skipped() {
+    long skipped = 0;
+    for (Worker worker : workers) {
+      skipped += worker.skipped.get();
+    }
+    return skipped;
+  }
+
+  long duplicates() {
+    long duplicates = 0;
+    for (Worker worker : workers) {
+      duplicates += worker.duplicates.get();
+    }
+    return duplicates;
+  }
+
+  /* Docs and bytes per second since the previous line, and the current queue depths. */
+  private synchronized String progressLine() {
+    Totals totals = new Totals("total", workers);
+    long now = System.nanoTime();
+    double seconds = Math.max(1e-9, (now - lastNanos) / 1e9);
+    StringBuilder line = new StringBuilder(String.format(Locale.ROOT,
+            "[progress] %d docs (%.0f docs/s, %.2f MB/s), %d skipped, %d failed",
+            totals.docs, (totals.docs - lastDocs) / seconds,
+            (totals.bytes - lastBytes) / seconds / (1024 * 1024), totals.skipped, totals.failed));
+    lastDocs = totals.docs;
+    lastBytes = totals.bytes;
+    lastNanos = now;
+    sampleGauges(line);
+    line.append(String.format(Locale.ROOT, ", %d flushes, %d merges", flushes.sum(), merges.sum()));
+    return line.toString();
+  }
+
+  private void sampleGauges(StringBuilder line) {
+    for (Map.Entry<String, LongSupplier> gauge : new TreeMap<>(gauges).entrySet()) {
+      long value = gauge.getValue().getAsLong();
+      gaugeMax.get(gauge.getKey()).accumulateAndGet(value, Math::max);
+      line.append(", ").append(gauge.getKey()).append('=').append(value);
+    }
+  }
+
+  /** Prints the totals of the run. */
+  void printSummary() {
+    Totals totals = new Totals("total", workers);
+    double seconds = Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+    System.out.printf(Locale.ROOT,
+            "Throughput: %.0f docs/s, %.2f MB/s; addDocument %.3f ms avg, %.3f ms max;"
+                    + " %d flushes in %d ms, %d merges in %d ms%n",
+            totals.docs / seconds, totals.bytes / seconds / (1024 * 1024),
+            totals.docs == 0 ? 0 : totals.addNanos / 1e6 / totals.docs, totals.maxAddNanos / 1e6,
+            flushes.sum(), flushNanos.sum() / 1_000_000, merges.sum(), mergeNanos.sum() / 1_000_000);
+  }
+
+  /**
+   * Writes the report of the run to the given file: JSON if its name ends with ".json", CSV
+   * otherwise, with one row per worker, per stage and for the whole run.
+   *
+   * @param file Report file, overwritten if it exists
+   * @param bytesWritten Bytes written to the index by the run
+   */
+  void writeReport(Path file, long bytesWritten) throws IOException {
+    sampleGauges(new StringBuilder());
+    List<Totals> rows = new ArrayList<>();
+    Map<String, List<Worker>> stages = new TreeMap<>();
+    for (Worker worker : workers) {
+      rows.add(new Totals(worker.name, List.of(worker)));
+      stages.computeIfAbsent(worker.stage, s -> new ArrayList<>()).add(worker);
+    }
+    List<Totals> stageRows = new ArrayList<>();
+    for (Map.Entry<String, List<Worker>> stage : stages.entrySet()) {
+      stageRows.add(new Totals(stage.getKey(), stage.getValue()));
+    }
+    Totals total = new Totals("total", workers);
+    long elapsedMillis = (System.nanoTime() - startNanos) / 1_000_000;
+
+    try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+      if (file.getFileName().toString().endsWith(".json")) {
+        out.println("{");
+        out.printf(Locale.ROOT, "  \"elapsedMillis\": %d,%n", elapsedMillis);
+        out.printf(Locale.ROOT, "  \"bytesWritten\": %d,%n", bytesWritten);
+        out.printf(Locale.ROOT, "  \"flushes\": %d,%n  \"flushMillis\": %d,%n",
+                flushes.sum(), flushNanos.sum() / 1_000_000);
+        out.printf(Locale.ROOT, "  \"merges\": %d,%n  \"mergeMillis\": %d,%n",
+                merges.sum(), mergeNanos.sum() / 1_000_000);
+        out.print("  \"maxQueueDepth\": {");
+        String sep = "";
+        for (Map.Entry<String, AtomicLong> gauge : new TreeMap<>(gaugeMax).entrySet()) {
+          out.printf(Locale.ROOT, "%s\"%s\": %d", sep, gauge.getKey(), gauge.getValue().get());
+          sep = ", ";
+        }
+        out.println("},");
+        out.println("  \"total\": " + total.toJson(elapsedMillis) + ",");
+        printJsonArray(out, "stages", stageRows, elapsedMillis);
+        out.println(",");
+        printJsonArray(out, "workers", rows, elapsedMillis);
+        out.println();
+        out.println("}");
+      } else {
+        out.println("scope,name," + Totals.CSV_HEADER + ",flushes,flushMillis,merges,mergeMillis,"
+                + "bytesWritten,elapsedMillis");
+        for (Totals row : rows) {
+          out.println("worker," + row.toCsv() + ",,,,,,");
+        }
+        for (Totals row : stageRows) {
+          out.println("stage," + row.toCsv() + ",,,,,,");
+        }
+        out.println("total," + total.toCsv() + "," + flushes.sum() + ","
+                + flushNanos.sum() / 1_000_000 + "," + merges.sum() + ","
+                + mergeNanos.sum() / 1_000_000 + "," + bytesWritten + "," + elapsedMillis);
+      }
+    }
+  }
+
+  private static void printJsonArray(PrintWriter out, String name, List<Totals> rows,
+          long elapsedMillis) {
+    out.print("  \"" + name + "\": [");
+    for (int i = 0; i < rows.size(); i++) {
+      out.print(i == 0 ? "\n    " : ",\n    ");
+      out.print(rows.get(i).toJson(elapsedMillis));
+    }
+    out.print("\n  ]");
+  }
+
+  /** Counters of a single thread, only updated by that thread. */
+  static final class Worker {
+    final String name;
+    final String stage;
+    final AtomicLong docs = new AtomicLong();
+    final AtomicLong bytes = new AtomicLong();
+    final AtomicLong skipped = new AtomicLong();
+    final AtomicLong failed = new AtomicLong();
+    final AtomicLong duplicates = new AtomicLong();
+    final AtomicLong readNanos = new AtomicLong();
+    final AtomicLong buildNanos = new AtomicLong();
+    final AtomicLong addNanos = new AtomicLong();
+    final AtomicLong maxAddNanos = new AtomicLong();
+
+    Worker(String name) {
+      this.name = name;
+      this.stage = name.replaceFirst("-\\d+$", "");
+    }
+
+    /** Records a document of the given size, built and then added in the given times. */
+    void indexed(long size, long build, long add) {
+      // Single writer: plain read-then-set is enough, and cheaper than an atomic update
+      docs.lazySet(docs.get() + 1);
+      bytes.lazySet(bytes.get() + size);
+      buildNanos.lazySet(buildNanos.get() + build);
+      addNanos.lazySet(addNanos.get() + add);
+      if (add > maxAddNanos.get()) {
+        maxAddNanos.lazySet(add);
+      }
+    }
+
+    /** Records the time spent reading the contents of a file ahead of indexing it. */
+    void read(long nanos) {
+      readNanos.lazySet(readNanos.get() + nanos);
+    }
+
+    void skipped() {
+      skipped.lazySet(skipped.get() + 1);
+    }
+
+    void failed() {
+      failed.lazySet(failed.get() + 1);
+    }
+
+    /** Records a file whose contents were already indexed from another file. */
+    void duplicate() {
+      duplicates.lazySet(duplicates.get() + 1);
+    }
+  }
+
+  /** Sums of the counters of a set of workers. */
+  private static final class Totals {
+    static final String CSV_HEADER =
+        "docs,bytes,skipped,failed,duplicates,readMillis,buildMillis,addDocumentMillis,maxAddDocumentMillis";
+
+    final String name;
+    long docs;
+    long bytes;
+    long skipped;
+    long failed;
+    long duplicates;
+    long readNanos;
+    long buildNanos;
+    long addNanos;
+    long maxAddNanos;
+
+    Totals(String name, Iterable<Worker> workers) {
+      this.name = name;
+      for (Worker worker : workers) {
+        docs += worker.docs.get();
+        bytes += worker.bytes.get();
+        skipped += worker.skipped.get();
+        failed += worker.failed.get();
+        duplicates += worker.duplicates.get();
+        readNanos += worker.readNanos.get();
+        buildNanos += worker.buildNanos.get();
+        addNanos += worker.addNanos.get();
+        maxAddNanos = Math.max(maxAddNanos, worker.maxAddNanos.get());
+      }
+    }
+
+    String toCsv() {
+      return String.format(Locale.ROOT, "%s,%d,%d,%d,%d,%d,%d,%d,%d,%.3f", name, docs, bytes,
+              skipped, failed, duplicates, readNanos / 1_000_000, buildNanos / 1_000_000,
+              addNanos / 1_000_000, maxAddNanos / 1e6);
+    }
+
+    String toJson(long elapsedMillis) {
+      double seconds = Math.max(1e-3, elapsedMillis / 1e3);
+      return String.format(Locale.ROOT,
+              "{\"name\": \"%s\", \"docs\": %d, \"bytes\": %d, \"skipped\": %d, \"failed\": %d,"
+                      + " \"duplicates\": %d, \"docsPerSecond\": %.1f, \"bytesPerSecond\": %.1f,"
+                      + " \"readMillis\": %d, \"buildMillis\": %d, \"addDocumentMillis\": %d,"
+                      + " \"maxAddDocumentMillis\": %.3f}",
+              name.replace("\\", "\\\\").replace("\"", "\\\""), docs, bytes, skipped, failed,
+              duplicates, docs / seconds, bytes / seconds, readNanos / 1_000_000, buildNanos / 1_000_000,
+              addNanos / 1_000_000, maxAddNanos / 1e6);
+    }
+  }
+}
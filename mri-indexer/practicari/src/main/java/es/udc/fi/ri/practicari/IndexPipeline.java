@@ -0,0 +1,352 @@
+package es.udc.fi.ri.practicari;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.lucene.index.IndexWriter;
+
+/**
+ * Staged alternative to the fork-join scheduler of {@link IndexFiles}, for storage such as NFS
+ * where reading files is slow and should overlap with analysis:
+ *
+ * <ol>
+ *   <li>a walker thread lists the tree and queues the accepted paths,
+ *   <li>{@link IndexSettings#readThreads} readers stat each file and read its contents into memory,
+ *   <li>{@link IndexSettings#numThreads} analyzers build the documents and add them to the index.
+ * </ol>
+ *
+ * <p>Stages are connected by bounded queues, so a slow stage blocks the one before it, and the
+ * contents read but not indexed yet never add up to more than {@link
+ * IndexSettings#maxInFlightMB}. Files bigger than a quarter of that budget are not read ahead;
+ * their analyzer streams them from disk instead.
+ */
+class IndexPipeline {
+  static final int QUEUE_CAPACITY = 1024;
+
+  /* End-of-stream markers, one per consumer thread. */
+  private static final QueuedFile NO_MORE_PATHS = new QueuedFile(null, null);
+  private static final LoadedFile NO_MORE_FILES = new LoadedFile(null, null, null, 0, null);
+
+  private final IndexFiles indexFiles;
+  private final IndexSettings settings;
+  private final IndexMetrics metrics;
+  /* Tracks the directories done, or null. */
+  private final Checkpointer checkpointer;
+  private final BlockingQueue<QueuedFile> paths = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+  private final BlockingQueue<LoadedFile> loaded = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+  /* Contents read ahead, in KB. */
+  private final Semaphore inFlight;
+  private final int inFlightKB;
+  private final int prefetchLimitKB;
+
+  IndexPipeline(IndexFiles indexFiles, IndexSettings settings, IndexMetrics metrics,
+          Checkpointer checkpointer) {
+    this.indexFiles = indexFiles;
+    this.settings = settings;
+    this.metrics = metrics;
+    this.checkpointer = checkpointer;
+    this.inFlightKB = Math.max(1, settings.maxInFlightMB * 1024);
+    this.inFlight = new Semaphore(inFlightKB);
+    this.prefetchLimitKB = Math.max(1, inFlightKB / 4);
+  }
+
+  /** Indexes every accepted file under root (or root itself if it is a file). */
+  void run(Path root) {
+    ExecutorService walker = Executors.newSingleThreadExecutor(named("walker"));
+    ExecutorService readers = Executors.newFixedThreadPool(settings.readThreads, named("reader"));
+    int analyzerThreads = indexFiles.workerThreads();
+    ExecutorService analyzers = Executors.newFixedThreadPool(analyzerThreads, named("analyzer"));
+    AtomicInteger liveReaders = new AtomicInteger(settings.readThreads);
+    metrics.gauge("paths", paths::size);
+    metrics.gauge("loaded", loaded::size);
+    metrics.gauge("inFlightKB", () -> inFlightKB - inFlight.availablePermits());
+
+    walker.execute(() -> walk(root));
+    for (int i = 0; i < settings.readThreads; i++) {
+      readers.execute(() -> {
+        try {
+          read();
+        } finally {
+          // The last reader tells every analyzer that there is nothing left
+          if (liveReaders.decrementAndGet() == 0) {
+            for (int j = 0; j < analyzerThreads; j++) {
+              put(loaded, NO_MORE_FILES);
+            }
+          }
+        }
+      });
+    }
+    for (int i = 0; i < analyzerThreads; i++) {
+      analyzers.execute(this::analyze);
+    }
+
+    walker.shutdown();
+    readers.shutdown();
+    analyzers.shutdown();
+    try {
+      walker.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      readers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      analyzers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (final InterruptedException e) {
+      e.printStackTrace();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /* Producer: queues the paths the fork-join scheduler would index, honouring depth and filters. */
+  private void walk(Path root) {
+    // Directories at depth d hold files at walk depth d + 1
+    int maxDepth = settings.depth < 0 ? Integer.MAX_VALUE : settings.depth + 1;
+    // Directories being listed, innermost first, when directories done are tracked
+    Deque<Checkpointer.Dir> dirs = new ArrayDeque<>();
+    try {
+      Files.walkFileTree(root, EnumSet.noneOf(FileVisitOption.class), maxDepth,
+              new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                  if (checkpointer == null) {
+                    return FileVisitResult.CONTINUE;
+                  }
+                  if (checkpointer.isResumedDone(dir)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                  }
+                  dirs.push(checkpointer.open(dir, dirs.peek()));
+                  return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                  if (!attrs.isDirectory() && settings.acceptsFile(file.getFileName().toString())) {
+                    Checkpointer.Dir dir = dirs.peek();
+                    if (dir != null) {
+                      dir.add();
+                    }
+                    put(paths, new QueuedFile(file, dir));
+                  }
+                  return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException exc) {
+                  if (exc != null) {
+                    exc.printStackTrace(System.err);
+                  }
+                  if (checkpointer != null) {
+                    // Listed: the directory is done once its queued files are
+                    dirs.pop().release();
+                  }
+                  return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                  // don't index files that can't be read.
+                  exc.printStackTrace(System.err);
+                  return FileVisitResult.CONTINUE;
+                }
+              });
+    } catch (IOException e) {
+      e.printStackTrace(System.err);
+    } finally {
+      for (int i = 0; i < settings.readThreads; i++) {
+        put(paths, NO_MORE_PATHS);
+      }
+    }
+  }
+
+  /* I/O stage: stats the file and reads its contents once there is room in the budget. */
+  private void read() {
+    QueuedFile queued;
+    while ((queued = take(paths)) != NO_MORE_PATHS) {
+      Path file = queued.path;
+      try {
+        FileStat stat = FileStat.of(file);
+        if (indexFiles.skipUnchanged(file, stat)) {
+          release(queued.dir);
+          continue;
+        }
+        int kb = (int) Math.max(1, (stat.size() + 1023) / 1024);
+        if (kb > prefetchLimitKB) {
+          put(loaded, new LoadedFile(file, stat, null, 0, queued.dir));
+          continue;
+        }
+        acquire(kb);
+        byte[] contents;
+        long start = System.nanoTime();
+        try {
+          contents = readContents(file, stat.size());
+        } catch (IOException | RuntimeException e) {
+          inFlight.release(kb);
+          throw e;
+        }
+        metrics.worker().read(System.nanoTime() - start);
+        put(loaded, new LoadedFile(file, stat, contents, kb, queued.dir));
+      } catch (IOException | RuntimeException e) {
+        // don't index files that can't be read, and keep consuming: if every reader
+        // stopped, the walker would block on a full queue forever
+        release(queued.dir);
+        metrics.worker().failed();
+        e.printStackTrace(System.err);
+      }
+    }
+  }
+
+  /* Reads the file, or only as far as its first onlyLines lines. */
+  private byte[] readContents(Path file, long size) throws IOException {
+    try (InputStream in = Files.newInputStream(file)) {
+      if (settings.nlines < 0) {
+        return in.readAllBytes();
+      }
+      ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(size, 8192));
+      byte[] chunk = new byte[8192];
+      int lines = 0;
+      boolean afterCR = false;
+      int n;
+      while (lines < settings.nlines && (n = in.read(chunk)) != -1) {
+        int end = n;
+        for (int i = 0; i < n; i++) {
+          byte b = chunk[i];
+          if (b == '\r') {
+            lines++;
+          } else if (b == '\n' && !afterCR) {
+            lines++;
+          }
+          afterCR = b == '\r';
+          if (lines == settings.nlines) {
+            end = i + 1;
+            break;
+          }
+        }
+        out.write(chunk, 0, end);
+      }
+      return out.toByteArray();
+    }
+  }
+
+  /* Analysis stage: builds and adds the documents, giving their bytes back to the budget. */
+  private void analyze() {
+    LoadedFile file;
+    while ((file = take(loaded)) != NO_MORE_FILES) {
+      try {
+        IndexWriter writer = indexFiles.writerFor(file.path);
+        if (file.contents == null) {
+          indexFiles.indexDoc(writer, file.path, file.stat);
+        } else {
+          indexFiles.indexDoc(writer, file.path, new ByteArrayInputStream(file.contents), file.stat);
+        }
+      } catch (IOException | RuntimeException e) {
+        // Keep consuming, or the readers would block on a full queue forever
+        metrics.worker().failed();
+        e.printStackTrace(System.err);
+      } finally {
+        inFlight.release(file.permits);
+        release(file.dir);
+      }
+    }
+  }
+
+  private static void release(Checkpointer.Dir dir) {
+    if (dir != null) {
+      dir.release();
+    }
+  }
+
+  private void acquire(int kb) {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        inFlight.acquire(kb);
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static <T> void put(BlockingQueue<T> queue, T item) {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        queue.put(item);
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static <T> T take(BlockingQueue<T> queue) {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return queue.take();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private static ThreadFactory named(String stage) {
+    AtomicInteger count = new AtomicInteger();
+    return r -> new Thread(r, "pipeline-" + stage + "-" + count.incrementAndGet());
+  }
+
+  /** A file listed by the walker, with the directory it belongs to if directories are tracked. */
+  private static final class QueuedFile {
+    final Path path;
+    final Checkpointer.Dir dir;
+
+    QueuedFile(Path path, Checkpointer.Dir dir) {
+      this.path = path;
+      this.dir = dir;
+    }
+  }
+
+  /** A file whose contents were read ahead, or null contents when it must be streamed. */
+  private static final class LoadedFile {
+    final Path path;
+    final FileStat stat;
+    final byte[] contents;
+    /* KB of the in-flight budget held until the file is indexed. */
+    final int permits;
+    final Checkpointer.Dir dir;
+
+    LoadedFile(Path path, FileStat stat, byte[] contents, int permits, Checkpointer.Dir dir) {
+      this.path = path;
+      this.stat = stat;
+      this.contents = contents;
+      this.permits = permits;
+      this.dir = dir;
+    }
+  }
+}
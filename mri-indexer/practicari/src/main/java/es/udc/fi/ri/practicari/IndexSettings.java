@@ -0,0 +1,98 @@
+package es.udc.fi.ri.practicari;
+
+/**
+ * Settings of an {@link IndexFiles} run, filled in from the command line and from
+ * config.properties before indexing starts.
+ */
+class IndexSettings {
+  /* Create a new index (true) or update an existing one (false). */
+  boolean create = true;
+  /* In update mode, skip the files whose size, date or content did not change. */
+  boolean incremental = false;
+  /* In update mode, delete the documents of files that are no longer on disk. */
+  boolean reconcile = false;
+  /* Number of worker threads; 0 or less means one per available processor. */
+  int numThreads = 0;
+  /* All workers feed one IndexWriter (true) or each builds a temporary index merged at the end. */
+  boolean sharedWriter = true;
+  /* RAM buffer of the final IndexWriter before it flushes a segment. */
+  double ramBufferMB = 128.0;
+  /* CSV file where a line with the writer mode, bytes written and wall time is appended. */
+  String ioReport = null;
+  /*
+   * Use the staged IndexPipeline (walker, readThreads readers, numThreads analyzers) instead of
+   * the fork-join scheduler. maxInFlightMB caps the file contents read but not yet indexed.
+   */
+  boolean pipeline = false;
+  int readThreads = 4;
+  int maxInFlightMB = 64;
+  /* Print an "adding"/"updating" line per file (through an AsyncLog). */
+  boolean verbose = false;
+  /* Seconds between progress lines; 0 or less, the default, disables them. */
+  int progressSeconds = 0;
+  /* JSON (.json) or CSV file where the IndexMetrics report of the run is written. */
+  String metricsReport = null;
+  /*
+   * Seconds at the start of the run during which an AutoTuner adjusts the writer and the number of
+   * workers, within autoTuneBounds; 0 disables it.
+   */
+  int autoTuneSeconds = 0;
+  AutoTuner.Bounds autoTuneBounds = null;
+  /*
+   * Seconds between checkpoint commits, 0 for none. A resumed run skips what the last checkpoint
+   * of the index recorded as done.
+   */
+  int checkpointSeconds = 0;
+  boolean resume = false;
+  /*
+   * Number of independent indexes the documents are routed to by a hash of their path, written
+   * as a ShardSet under the index path; 1 or less writes a single index.
+   */
+  int shards = 1;
+  /*
+   * Index the contents shared by several files only once: the other files get an alias document
+   * pointing at the first one (dedupAliases) or are left out of the index.
+   */
+  boolean dedup = false;
+  boolean dedupAliases = true;
+  /* Store the SimHash and MinHash Signatures of the contents as doc values. */
+  boolean signatures = false;
+  /*
+   * Write the postings of path through IdBloomCodec, so incremental runs look new files up quickly.
+   * Off by default: reading such an index needs lucene-codecs on the classpath.
+   */
+  boolean idBloom = false;
+  /* Maximum directory depth to explore, the docs root being depth 0; -1 means no limit. */
+  int depth = -1;
+  boolean contentsStored = false;
+  boolean contentsTermVectors = false;
+  /* Extensions from config.properties; null when the key is not set. */
+  String[] onlyFiles = null;
+  String[] notFiles = null;
+  /* Maximum number of lines indexed per file; -1 means the whole file. */
+  int nlines = -1;
+
+  /** Returns whether a file with the given name passes the onlyFiles / notFiles filters. */
+  boolean acceptsFile(String fileName) {
+    if (notFiles != null) {
+      for (String s : notFiles) {
+        if (fileName.endsWith(s)) {
+          return false;
+        }
+      }
+    } else if (onlyFiles != null) {
+      for (String s : onlyFiles) {
+        if (fileName.endsWith(s)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    return true;
+  }
+
+  /** Returns whether a directory at the given distance from the docs root must be explored. */
+  boolean acceptsDepth(int level) {
+    return depth < 0 || level <= depth;
+  }
+}
@@ -0,0 +1,72 @@
+package es.udc.fi.ri.practicari;
+
+/**
+ * Set of 128-bit values, each stored as two longs in flat arrays with open addressing and linear
+ * probing: no object per entry, so millions of fingerprints take 16 bytes each plus the free slots.
+ * The table doubles when it is half full. Not thread safe.
+ */
+final class LongPairHashSet {
+  private long[] high;
+  private long[] low;
+  private boolean[] used;
+  private int mask;
+  private int size;
+
+  /** Creates a set that holds expectedSize values without growing. */
+  LongPairHashSet(int expectedSize) {
+    int capacity = Integer.highestOneBit(Math.max(16, expectedSize) * 2 - 1) << 1;
+    allocate(capacity);
+  }
+
+  /** Adds the value (hi, lo) and returns true, or returns false if it was already there. */
+  boolean add(long hi, long lo) {
+    int slot = (int) (lo ^ (lo >>> 32)) & mask;
+    while (used[slot]) {
+      if (high[slot] == hi && low[slot] == lo) {
+        return false;
+      }
+      slot = (slot + 1) & mask;
+    }
+    used[slot] = true;
+    high[slot] = hi;
+    low[slot] = lo;
+    if (++size > (mask + 1) >>> 1) {
+      grow();
+    }
+    return true;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /** Bytes taken by the table. */
+  long ramBytesUsed() {
+    return (mask + 1L) * (2 * Long.BYTES + 1);
+  }
+
+  private void allocate(int capacity) {
+    high = new long[capacity];
+    low = new long[capacity];
+    used = new boolean[capacity];
+    mask = capacity - 1;
+  }
+
+  private void grow() {
+    long[] oldHigh = high;
+    long[] oldLow = low;
+    boolean[] oldUsed = used;
+    allocate(oldUsed.length * 2);
+    for (int i = 0; i < oldUsed.length; i++) {
+      if (oldUsed[i]) {
+        int slot = (int) (oldLow[i] ^ (oldLow[i] >>> 32)) & mask;
+        while (used[slot]) {
+          slot = (slot + 1) & mask;
+        }
+        used[slot] = true;
+        high[slot] = oldHigh[i];
+        low[slot] = oldLow[i];
+      }
+    }
+  }
+}
@@ -0,0 +1,425 @@
+package es.udc.fi.ri.practicari;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+
+/**
+ * Groups the documents of an index whose sets of "contents" terms are nearly the same, with the
+ * MinHash sketches of {@link Signatures} and locality sensitive hashing.
+ *
+ * <p>The {@link Signatures#NUM_HASHES} values of every sketch are cut into bands of consecutive
+ * rows, and two documents are candidates when all the rows of some band are equal, which happens
+ * with probability 1 - (1 - J^rows)^bands for Jaccard similarity J. The documents of each band are
+ * sorted by the hash of the band, so candidates are found in n log n time instead of comparing
+ * every pair, and each candidate is verified against the threshold with the whole sketch before
+ * joining its cluster. The document kept of a cluster is its first one in leaf order, and every
+ * other member is similar to it: a document joins a cluster when it is similar to the document
+ * kept, and two clusters are merged only when the kept document of the first is similar to every
+ * member of the second.
+ *
+ * <p>Sketches come from the {@link Signatures#MINHASH_FIELD} doc values when the index was built
+ * with -signatures, and are otherwise rebuilt from the term vectors of "contents" or, without them,
+ * by walking its postings. The heap holds {@link Signatures#NUM_HASHES} ints per document.
+ */
+final class NearDuplicateFinder {
+  static final String CONTENTS_FIELD = "contents";
+  /* Documents of a bucket that the others are verified against before giving up. */
+  static final int MAX_LEADERS = 8;
+
+  private static final Set<String> PATH_FIELD = Collections.singleton("path");
+
+  private final double threshold;
+  private final int bands;
+  private final int rows;
+  private final LeafSketches[] leaves;
+  private final int[] docBases;
+  /* Union-find over the top level doc ids; the root of a cluster is its smallest doc. */
+  private final int[] parent;
+  /* Circular list of the members of each cluster, to verify them all before a merge. */
+  private final int[] next;
+  private long candidates;
+  private long clusters;
+  private long largestCluster;
+
+  /**
+   * @param threshold Estimated Jaccard similarity from which two documents are near duplicates
+   * @param bands Bands of the sketch, a divisor of {@link Signatures#NUM_HASHES}
+   * @param leaves Sketches of every leaf, by leaf ordinal
+   * @param docBases docBase of every leaf, by leaf ordinal
+   */
+  NearDuplicateFinder(double threshold, int bands, LeafSketches[] leaves, int[] docBases) {
+    if (bands <= 0 || Signatures.NUM_HASHES % bands != 0) {
+      throw new IllegalArgumentException(
+          "the number of bands must divide " + Signatures.NUM_HASHES + ": " + bands);
+    }
+    this.threshold = threshold;
+    this.bands = bands;
+    this.rows = Signatures.NUM_HASHES / bands;
+    this.leaves = leaves;
+    this.docBases = docBases;
+    int maxDoc = leaves.length == 0 ? 0 : docBases[leaves.length - 1] + leaves[leaves.length - 1].maxDoc;
+    this.parent = new int[maxDoc];
+    this.next = new int[maxDoc];
+    for (int i = 0; i < maxDoc; i++) {
+      parent[i] = i;
+      next[i] = i;
+    }
+  }
+
+  /**
+   * Returns the number of bands whose candidates best match the threshold: the most rows per band,
+   * so that fewer dissimilar pairs are compared, while the similarity at which half of the pairs
+   * become candidates, about (1 / bands)^(1 / rows), stays at or below the threshold.
+   */
+  static int defaultBands(double threshold) {
+    int best = Signatures.NUM_HASHES;
+    for (int rows = 1; rows <= Signatures.NUM_HASHES; rows *= 2) {
+      int bands = Signatures.NUM_HASHES / rows;
+      if (Math.pow(1.0 / bands, 1.0 / rows) <= threshold) {
+        best = bands;
+      }
+    }
+    return best;
+  }
+
+  int bands() {
+    return bands;
+  }
+
+  int rows() {
+    return rows;
+  }
+
+  /** Pairs of documents compared with their whole sketch. */
+  long candidates() {
+    return candidates;
+  }
+
+  /** Clusters of more than one document. */
+  long clusters() {
+    return clusters;
+  }
+
+  long largestCluster() {
+    return largestCluster;
+  }
+
+  /**
+   * Finds the clusters and returns, by leaf ordinal, the documents of every cluster but the one
+   * that is kept.
+   */
+  FixedBitSet[] find() {
+    int present = 0;
+    for (LeafSketches leaf : leaves) {
+      present += leaf.present.cardinality();
+    }
+    // Hash of the band in the high half, doc in the low half: sorting groups each bucket by doc
+    long[] entries = new long[present];
+    for (int band = 0; band < bands; band++) {
+      int n = 0;
+      for (int ord = 0; ord < leaves.length; ord++) {
+        LeafSketches leaf = leaves[ord];
+        for (int doc = leaf.present.nextSetBit(0);
+            doc != DocIdSetIterator.NO_MORE_DOCS;
+            doc = doc + 1 < leaf.maxDoc ? leaf.present.nextSetBit(doc + 1) : DocIdSetIterator.NO_MORE_DOCS) {
+          entries[n++] = (long) bandHash(leaf.values, doc * Signatures.NUM_HASHES, band) << 32
+              | (docBases[ord] + doc);
+        }
+      }
+      Arrays.sort(entries, 0, n);
+      int start = 0;
+      for (int i = 1; i <= n; i++) {
+        if (i == n || entries[i] >>> 32 != entries[start] >>> 32) {
+          if (i - start > 1) {
+            verifyBucket(entries, start, i);
+          }
+          start = i;
+        }
+      }
+    }
+
+    FixedBitSet[] duplicates = new FixedBitSet[leaves.length];
+    int[] sizes = new int[parent.length];
+    for (int ord = 0; ord < leaves.length; ord++) {
+      LeafSketches leaf = leaves[ord];
+      duplicates[ord] = new FixedBitSet(leaf.maxDoc);
+      for (int doc = 0; doc < leaf.maxDoc; doc++) {
+        if (!leaf.present.get(doc)) {
+          continue;
+        }
+        int root = find(docBases[ord] + doc);
+        if (root != docBases[ord] + doc) {
+          duplicates[ord].set(doc);
+        }
+        if (++sizes[root] == 2) {
+          clusters++;
+        }
+        largestCluster = Math.max(largestCluster, sizes[root] > 1 ? sizes[root] : 0);
+      }
+    }
+    return duplicates;
+  }
+
+  /*
+   * Verifies the documents of a bucket, in doc order, against its first documents: a document
+   * joins the cluster of the first leader it can be merged with, or becomes a leader itself.
+   */
+  private void verifyBucket(long[] entries, int from, int to) {
+    int[] leaders = new int[MAX_LEADERS];
+    int numLeaders = 0;
+    for (int i = from; i < to; i++) {
+      int doc = (int) entries[i];
+      boolean joined = false;
+      for (int l = 0; l < numLeaders && !joined; l++) {
+        joined = merge(leaders[l], doc);
+      }
+      if (!joined && numLeaders < MAX_LEADERS) {
+        leaders[numLeaders++] = doc;
+      }
+    }
+  }
+
+  /*
+   * Merges the clusters of a and b if the root of one, the document kept, is similar to every
+   * member of the other, and returns whether they are now the same cluster.
+   */
+  private boolean merge(int a, int b) {
+    int rootA = find(a);
+    int rootB = find(b);
+    if (rootA == rootB) {
+      // Already joined through another band
+      return true;
+    }
+    int root = Math.min(rootA, rootB);
+    int other = Math.max(rootA, rootB);
+    int member = other;
+    do {
+      candidates++;
+      if (similarity(root, member) < threshold) {
+        return false;
+      }
+      member = next[member];
+    } while (member != other);
+    do {
+      parent[member] = root;
+      member = next[member];
+    } while (member != other);
+    // Splices the two circular lists into one
+    int swap = next[root];
+    next[root] = next[other];
+    next[other] = swap;
+    return true;
+  }
+
+  /** Estimated Jaccard similarity of two top level documents. */
+  double similarity(int a, int b) {
+    int leafA = leafOf(a);
+    int leafB = leafOf(b);
+    int[] valuesA = leaves[leafA].values;
+    int[] valuesB = leaves[leafB].values;
+    int offsetA = (a - docBases[leafA]) * Signatures.NUM_HASHES;
+    int offsetB = (b - docBases[leafB]) * Signatures.NUM_HASHES;
+    int equal = 0;
+    for (int i = 0; i < Signatures.NUM_HASHES; i++) {
+      if (valuesA[offsetA + i] == valuesB[offsetB + i]) {
+        equal++;
+      }
+    }
+    return (double) equal / Signatures.NUM_HASHES;
+  }
+
+  /**
+   * Writes the clusters of more than one document as tab separated lines: cluster number, keep or
+   * drop, similarity to the document kept and path of every member, the kept document first.
+   */
+  void writeReport(Path report, IndexReader reader) throws IOException {
+    // Root in the high half, member in the low half: sorting groups each cluster by doc
+    long[] members = new long[parent.length];
+    int n = 0;
+    for (int doc = 0; doc < parent.length; doc++) {
+      int root = find(doc);
+      if (root != doc) {
+        members[n++] = (long) root << 32 | doc;
+      }
+    }
+    Arrays.sort(members, 0, n);
+    try (BufferedWriter out = Files.newBufferedWriter(report, StandardCharsets.UTF_8)) {
+      out.write("cluster\trole\tsimilarity\tpath\n");
+      int cluster = 0;
+      int root = -1;
+      for (int i = 0; i < n; i++) {
+        int member = (int) members[i];
+        if ((int) (members[i] >>> 32) != root) {
+          root = (int) (members[i] >>> 32);
+          cluster++;
+          writeLine(out, cluster, "keep", 1.0, reader, root);
+        }
+        writeLine(out, cluster, "drop", similarity(root, member), reader, member);
+      }
+    }
+  }
+
+  private static void writeLine(BufferedWriter out, int cluster, String role, double similarity,
+      IndexReader reader, int doc) throws IOException {
+    String path = reader.document(doc, PATH_FIELD).get("path");
+    out.write(String.format(Locale.ROOT, "%d\t%s\t%.3f\t%s%n", cluster, role, similarity,
+        path == null ? "doc " + doc : path));
+  }
+
+  private int bandHash(int[] values, int offset, int band) {
+    int hash = band;
+    for (int i = band * rows; i < (band + 1) * rows; i++) {
+      hash = 31 * hash + values[offset + i];
+    }
+    // Murmur3 finalizer, so that the buckets do not follow the order of the values
+    hash ^= hash >>> 16;
+    hash *= 0x85ebca6b;
+    hash ^= hash >>> 13;
+    hash *= 0xc2b2ae35;
+    return hash ^ (hash >>> 16);
+  }
+
+  private int leafOf(int doc) {
+    int ord = Arrays.binarySearch(docBases, doc);
+    if (ord < 0) {
+      ord = -ord - 2;
+    }
+    // Empty leaves share their docBase with the next one
+    while (ord + 1 < docBases.length && docBases[ord + 1] == doc && leaves[ord].maxDoc == 0) {
+      ord++;
+    }
+    return ord;
+  }
+
+  private int find(int doc) {
+    while (parent[doc] != doc) {
+      parent[doc] = parent[parent[doc]];
+      doc = parent[doc];
+    }
+    return doc;
+  }
+
+  /**
+   * MinHash sketches of the live documents of a leaf: values[doc * NUM_HASHES + i]. Documents
+   * without terms, such as the aliases of IndexFiles -dedup, have none.
+   */
+  static final class LeafSketches {
+    final int maxDoc;
+    final int[] values;
+    final FixedBitSet present;
+    int liveDocs;
+    int fromDocValues;
+    int fromVectors;
+    int fromPostings;
+
+    private LeafSketches(int maxDoc) {
+      this.maxDoc = maxDoc;
+      this.values = new int[maxDoc * Signatures.NUM_HASHES];
+      this.present = new FixedBitSet(maxDoc);
+    }
+
+    static LeafSketches read(LeafReader leaf) throws IOException {
+      LeafSketches sketches = new LeafSketches(leaf.maxDoc());
+      Bits liveDocs = leaf.getLiveDocs();
+      FixedBitSet missing = new FixedBitSet(leaf.maxDoc());
+      BinaryDocValues stored = leaf.getBinaryDocValues(Signatures.MINHASH_FIELD);
+      int[] sketch = new int[Signatures.NUM_HASHES];
+      for (int doc = 0; doc < leaf.maxDoc(); doc++) {
+        if (liveDocs != null && !liveDocs.get(doc)) {
+          continue;
+        }
+        sketches.liveDocs++;
+        if (stored != null && stored.advanceExact(doc)) {
+          Signatures.decodeMinHash(stored.binaryValue(), sketch);
+          System.arraycopy(sketch, 0, sketches.values, doc * Signatures.NUM_HASHES, Signatures.NUM_HASHES);
+          sketches.present.set(doc);
+          sketches.fromDocValues++;
+        } else {
+          missing.set(doc);
+        }
+      }
+
+      FieldInfo contents = leaf.getFieldInfos().fieldInfo(CONTENTS_FIELD);
+      if (missing.cardinality() == 0 || contents == null) {
+        return sketches;
+      }
+      for (int doc = missing.nextSetBit(0);
+          doc != DocIdSetIterator.NO_MORE_DOCS;
+          doc = doc + 1 < leaf.maxDoc() ? missing.nextSetBit(doc + 1) : DocIdSetIterator.NO_MORE_DOCS) {
+        // Compared unsigned, so this is the largest value
+        Arrays.fill(sketches.values, doc * Signatures.NUM_HASHES, (doc + 1) * Signatures.NUM_HASHES, -1);
+      }
+      int[] termValues = new int[Signatures.NUM_HASHES];
+      if (contents.hasVectors()) {
+        for (int doc = missing.nextSetBit(0);
+            doc != DocIdSetIterator.NO_MORE_DOCS;
+            doc = doc + 1 < leaf.maxDoc() ? missing.nextSetBit(doc + 1) : DocIdSetIterator.NO_MORE_DOCS) {
+          Terms vector = leaf.getTermVector(doc, CONTENTS_FIELD);
+          if (vector != null && sketches.addTerms(vector.iterator(), doc, termValues)) {
+            sketches.fromVectors++;
+          }
+        }
+      } else {
+        // Without term vectors every document of a term is updated while walking its postings
+        Terms terms = leaf.terms(CONTENTS_FIELD);
+        if (terms != null) {
+          TermsEnum termsEnum = terms.iterator();
+          PostingsEnum postings = null;
+          for (BytesRef term = termsEnum.next(); term != null; term = termsEnum.next()) {
+            Signatures.minHashValues(Signatures.termHash(term), termValues);
+            postings = termsEnum.postings(postings, PostingsEnum.NONE);
+            for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+              if (missing.get(doc)) {
+                sketches.merge(doc, termValues);
+                sketches.present.set(doc);
+              }
+            }
+          }
+        }
+        sketches.fromPostings = sketches.present.cardinality() - sketches.fromDocValues;
+      }
+      return sketches;
+    }
+
+    /* Adds the terms of a term vector to the sketch of doc; false if there were none. */
+    private boolean addTerms(TermsEnum termsEnum, int doc, int[] termValues) throws IOException {
+      boolean any = false;
+      for (BytesRef term = termsEnum.next(); term != null; term = termsEnum.next()) {
+        Signatures.minHashValues(Signatures.termHash(term), termValues);
+        merge(doc, termValues);
+        any = true;
+      }
+      if (any) {
+        present.set(doc);
+      }
+      return any;
+    }
+
+    private void merge(int doc, int[] termValues) {
+      int offset = doc * Signatures.NUM_HASHES;
+      for (int i = 0; i < Signatures.NUM_HASHES; i++) {
+        if (Integer.compareUnsigned(termValues[i], values[offset + i]) < 0) {
+          values[offset + i] = termValues[i];
+        }
+      }
+    }
+  }
+}
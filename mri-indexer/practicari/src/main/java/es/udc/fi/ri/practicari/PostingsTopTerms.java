@@ -0,0 +1,243 @@
+package es.udc.fi.ri.practicari;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefArray;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.Counter;
+
+/**
+ * The best terms by tf·idf of every document of a window of doc ids, found without term vectors:
+ * each leaf that overlaps the window is read in one sequential pass over its terms dictionary and
+ * postings, and every posting inside the window is offered to the bounded min-heap of its document.
+ *
+ * <p>The heaps live in flat primitive arrays of top entries per document (term id, tf and score).
+ * Terms get an id, and their bytes are kept, the first time they enter a heap; ids follow the
+ * order of the terms dictionary, and a document only has terms of its own leaf, so comparing ids
+ * breaks ties by term as {@link TopTermsHeap} does. The df is that of the whole reader and the idf
+ * is numDocs / df, so the output is the same as from the term vectors.
+ *
+ * <p>An instance must be used by a single thread; its arrays are reused from window to window.
+ */
+final class PostingsTopTerms {
+  private final String field;
+  private final int top;
+  private final int numDocs;
+  private final List<LeafReaderContext> leaves;
+  /* Enum of the whole reader for the df, only needed when there are several leaves. */
+  private final TermsEnum docFreqs;
+  private final TermStatsSidecar.Lookup stats;
+
+  private int from;
+  private int to;
+  private int[] sizes = new int[0];
+  private int[] termIds = new int[0];
+  private int[] tfs = new int[0];
+  private double[] scores = new double[0];
+  private final BytesRefArray terms = new BytesRefArray(Counter.newCounter());
+  private int[] termDocFreqs = new int[16];
+  private final BytesRefBuilder scratch = new BytesRefBuilder();
+
+  /** @param stats Precomputed statistics of field for the df of several leaves, or null */
+  PostingsTopTerms(IndexReader reader, String field, int top, TermStatsSidecar.Lookup stats)
+      throws IOException {
+    this.field = field;
+    this.top = top;
+    this.numDocs = reader.numDocs();
+    this.leaves = reader.leaves();
+    Terms all = MultiTerms.getTerms(reader, field);
+    this.docFreqs = leaves.size() > 1 && stats == null && all != null ? all.iterator() : null;
+    this.stats = leaves.size() > 1 ? stats : null;
+  }
+
+  /** Finds the best terms of the documents from to to, both included. */
+  void collect(int from, int to) throws IOException {
+    int window = to - from + 1;
+    this.from = from;
+    this.to = to;
+    if (sizes.length < window) {
+      long entries = (long) window * top;
+      if (entries > ArrayUtil.MAX_ARRAY_LENGTH) {
+        throw new IllegalArgumentException(
+            "a window of " + window + " documents with top " + top + " needs " + entries + " entries");
+      }
+      sizes = new int[window];
+      termIds = new int[(int) entries];
+      tfs = new int[(int) entries];
+      scores = new double[(int) entries];
+    } else {
+      Arrays.fill(sizes, 0, window, 0);
+    }
+    terms.clear();
+    if (top == 0) {
+      return;
+    }
+
+    for (LeafReaderContext ctx : leaves) {
+      int min = Math.max(from, ctx.docBase) - ctx.docBase;
+      int max = Math.min(to, ctx.docBase + ctx.reader().maxDoc() - 1) - ctx.docBase;
+      Terms leafTerms = min > max ? null : ctx.reader().terms(field);
+      if (leafTerms == null) {
+        continue;
+      }
+      TermsEnum termsEnum = leafTerms.iterator();
+      PostingsEnum postings = null;
+      for (BytesRef term = termsEnum.next(); term != null; term = termsEnum.next()) {
+        postings = termsEnum.postings(postings, PostingsEnum.FREQS);
+        int termId = -1;
+        double logIdf = 0;
+        for (int doc = postings.advance(min); doc <= max; doc = postings.nextDoc()) {
+          if (termId == -1) {
+            // First document of the window with this term: only now is its df needed
+            int docFreq = docFreq(termsEnum, term);
+            logIdf = Math.log10((double) numDocs / (double) docFreq);
+            termId = terms.size();
+            terms.append(term);
+            termDocFreqs = ArrayUtil.grow(termDocFreqs, termId + 1);
+            termDocFreqs[termId] = docFreq;
+          }
+          int tf = postings.freq();
+          offer(ctx.docBase + doc - from, termId, tf, tf * logIdf);
+        }
+      }
+    }
+  }
+
+  int from() {
+    return from;
+  }
+
+  int to() {
+    return to;
+  }
+
+  /**
+   * Sorts the terms of a document of the window, best first, and returns how many there are:
+   * entry(doc, 0) to entry(doc, n - 1) are then the positions to read them from.
+   */
+  int sort(int doc) {
+    int d = doc - from;
+    int base = d * top;
+    int size = sizes[d];
+    // Heapsort: the worst term goes to the end each time
+    for (int end = size - 1; end > 0; end--) {
+      swap(base, base + end);
+      downHeap(base, 0, end);
+    }
+    return size;
+  }
+
+  int entry(int doc, int i) {
+    return (doc - from) * top + i;
+  }
+
+  BytesRef term(int entry) {
+    return terms.get(scratch, termIds[entry]);
+  }
+
+  int tf(int entry) {
+    return tfs[entry];
+  }
+
+  int df(int entry) {
+    return termDocFreqs[termIds[entry]];
+  }
+
+  double idf(int entry) {
+    return (double) numDocs / (double) df(entry);
+  }
+
+  double score(int entry) {
+    return scores[entry];
+  }
+
+  private int docFreq(TermsEnum leafTerms, BytesRef term) throws IOException {
+    if (stats != null) {
+      int ord = stats.ord(term);
+      return ord == -1 ? 0 : stats.docFreq(ord);
+    }
+    if (docFreqs == null) {
+      return leafTerms.docFreq();
+    }
+    return docFreqs.seekExact(term) ? docFreqs.docFreq() : 0;
+  }
+
+  /* Offers a term to the heap of the d-th document of the window. */
+  private void offer(int d, int termId, int tf, double score) {
+    int base = d * top;
+    int size = sizes[d];
+    if (size < top) {
+      set(base + size, termId, tf, score);
+      sizes[d] = size + 1;
+      upHeap(base, size);
+    } else if (!worse(score, termId, base)) {
+      set(base, termId, tf, score);
+      downHeap(base, 0, size);
+    }
+  }
+
+  private void set(int entry, int termId, int tf, double score) {
+    termIds[entry] = termId;
+    tfs[entry] = tf;
+    scores[entry] = score;
+  }
+
+  /* Lower score, or the same score and a later term, is worse. */
+  private boolean worse(double score, int termId, int entry) {
+    int cmp = Double.compare(score, scores[entry]);
+    return cmp < 0 || (cmp == 0 && termId > termIds[entry]);
+  }
+
+  private boolean worse(int a, int b) {
+    return worse(scores[a], termIds[a], b);
+  }
+
+  private void upHeap(int base, int i) {
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      if (!worse(base + i, base + parent)) {
+        break;
+      }
+      swap(base + i, base + parent);
+      i = parent;
+    }
+  }
+
+  private void downHeap(int base, int i, int size) {
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= size) {
+        break;
+      }
+      if (child + 1 < size && worse(base + child + 1, base + child)) {
+        child++;
+      }
+      if (!worse(base + child, base + i)) {
+        break;
+      }
+      swap(base + i, base + child);
+      i = child;
+    }
+  }
+
+  private void swap(int a, int b) {
+    int termId = termIds[a];
+    termIds[a] = termIds[b];
+    termIds[b] = termId;
+    int tf = tfs[a];
+    tfs[a] = tfs[b];
+    tfs[b] = tf;
+    double score = scores[a];
+    scores[a] = scores[b];
+    scores[b] = score;
+  }
+}
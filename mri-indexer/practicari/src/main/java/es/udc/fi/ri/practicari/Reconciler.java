@@ -0,0 +1,148 @@
+package es.udc.fi.ri.practicari;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+
+/**
+ * Deletes the documents whose "path" is under a docs root but no longer exists on disk.
+ *
+ * <p>The sorted "path" terms of the index are merge-joined with a walk of the docs root that
+ * yields paths in the same (UTF-8 byte) order, so neither side is ever held in memory: only the
+ * listing of the directories on the current branch of the walk and a bounded batch of orphan
+ * terms.
+ */
+class Reconciler {
+  /* Orphan terms handed to IndexWriter.deleteDocuments at a time. */
+  static final int DELETE_BATCH = 1024;
+
+  private Reconciler() {}
+
+  /**
+   * Deletes from the index the documents of files under root that are gone.
+   *
+   * @param writer Writer to the index; its pending changes are visible to the pass
+   * @param root The docs root the paths were indexed from
+   * @return The number of orphan paths deleted
+   */
+  static long deleteOrphans(IndexWriter writer, Path root) throws IOException {
+    if (!Files.isDirectory(root)) {
+      return 0;
+    }
+    BytesRef prefix = new BytesRef(root.toString() + root.getFileSystem().getSeparator());
+    long orphans = 0;
+    try (DirectoryReader reader = DirectoryReader.open(writer)) {
+      Terms terms = MultiTerms.getTerms(reader, "path");
+      if (terms == null) {
+        return 0;
+      }
+      TermsEnum indexed = terms.iterator();
+      if (indexed.seekCeil(prefix) == TermsEnum.SeekStatus.END) {
+        return 0;
+      }
+      SortedWalk onDisk = new SortedWalk(root);
+      List<Term> batch = new ArrayList<>();
+      BytesRef path = indexed.term();
+      BytesRef file = onDisk.next();
+      while (path != null && StringHelper.startsWith(path, prefix)) {
+        int cmp = file == null ? -1 : path.compareTo(file);
+        if (cmp < 0) {
+          batch.add(new Term("path", BytesRef.deepCopyOf(path)));
+          if (batch.size() == DELETE_BATCH) {
+            writer.deleteDocuments(batch.toArray(new Term[0]));
+            orphans += batch.size();
+            batch.clear();
+          }
+          path = indexed.next();
+        } else if (cmp == 0) {
+          path = indexed.next();
+          file = onDisk.next();
+        } else {
+          file = onDisk.next();
+        }
+      }
+      if (!batch.isEmpty()) {
+        writer.deleteDocuments(batch.toArray(new Term[0]));
+        orphans += batch.size();
+      }
+    }
+    return orphans;
+  }
+
+  /**
+   * Depth-first walk returning every non-directory entry under a root in the byte order of its
+   * UTF-8 path string. Siblings are sorted by name, with a separator appended to directory names,
+   * which is enough for the whole walk to come out sorted. Symbolic links to directories are not
+   * followed.
+   */
+  static final class SortedWalk {
+    private final String separator;
+    private final Deque<Iterator<Entry>> stack = new ArrayDeque<>();
+
+    SortedWalk(Path root) throws IOException {
+      this.separator = root.getFileSystem().getSeparator();
+      stack.push(list(root));
+    }
+
+    /** Returns the next file path, or null at the end of the walk. */
+    BytesRef next() throws IOException {
+      while (!stack.isEmpty()) {
+        Iterator<Entry> it = stack.peek();
+        if (!it.hasNext()) {
+          stack.pop();
+          continue;
+        }
+        Entry entry = it.next();
+        if (entry.directory) {
+          stack.push(list(entry.path));
+        } else {
+          return new BytesRef(entry.path.toString());
+        }
+      }
+      return null;
+    }
+
+    private Iterator<Entry> list(Path dir) throws IOException {
+      List<Entry> entries = new ArrayList<>();
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+        for (Path p : stream) {
+          boolean directory = Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS);
+          String name = p.getFileName().toString();
+          entries.add(new Entry(p, directory, new BytesRef(directory ? name + separator : name)));
+        }
+      } catch (IOException e) {
+        // An unreadable directory would look empty and have its documents deleted
+        throw new IOException("cannot reconcile unreadable directory " + dir, e);
+      }
+      entries.sort((a, b) -> a.key.compareTo(b.key));
+      return entries.iterator();
+    }
+  }
+
+  private static final class Entry {
+    final Path path;
+    final boolean directory;
+    final BytesRef key;
+
+    Entry(Path path, boolean directory, BytesRef key) {
+      this.path = path;
+      this.directory = directory;
+      this.key = key;
+    }
+  }
+}
@@ -1,20 +1,50 @@
 package es.udc.fi.ri.practicari;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
-import org.apache.lucene.document.Document;
 import org.apache.lucene.index.*;
+import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
 
 public class RemoveDuplicates {
+    /* Registros (huella, hoja, doc) que cada hilo junta antes de pasarlos al buffer común. */
+    static final int BATCH_RECORDS = 4096;
+
     public static void main(String[] args) throws Exception {
         String indexPath = null;
         String outPath = null;
+        String mode = "copy";
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        int heapBudgetMB = 0;
+        String spillDir = null;
+        double nearThreshold = 0;
+        int bands = 0;
+        String reportPath = null;
 
         String usage =
                 "java org.apache.lucene.demo.IndexFiles"
-                        + " -index INDEX_PATH -out PATH\n\n";
+                        + " -index INDEX_PATH[,INDEX_PATH...] [-out PATH] [-mode copy|reindex|inPlace] [-threads NUM]"
+                        + " [-heapBudgetMB NUM [-spillDir PATH]] [-nearDuplicates THRESHOLD [-bands NUM] [-report PATH]]\n\n"
+                        + "INDEX_PATH can be an index or a shard set written by IndexFiles -shards\n"
+                        + "copy (default): copies the segments without the duplicates to PATH, every field included\n"
+                        + "reindex: adds the stored fields of the documents kept to PATH, analyzing them again\n"
+                        + "inPlace: deletes the duplicates from INDEX_PATH itself, -out is not used\n"
+                        + "With -heapBudgetMB, the fingerprints are sorted on disk (in PATH, or the temporary directory)"
+                        + " instead of being held in memory\n"
+                        + "With -nearDuplicates, documents whose sets of terms have an estimated Jaccard similarity of at least"
+                        + " THRESHOLD are grouped with MinHash and LSH, one of each group is kept and the groups are"
+                        + " written to PATH (default: the output path followed by -clusters.tsv)";
 
         for (int i = 0; i < args.length; i++) {
             switch (args[i]) {
@@ -24,60 +54,514 @@ public class RemoveDuplicates {
                 case "-out":
                     outPath = args[++i];
                     break;
+                case "-mode":
+                    mode = args[++i];
+                    if (!mode.equals("copy") && !mode.equals("reindex") && !mode.equals("inPlace")) {
+                        throw new IllegalArgumentException("unknown mode " + mode);
+                    }
+                    break;
+                case "-threads":
+                    numThreads = Integer.parseInt(args[++i]);
+                    break;
+                case "-heapBudgetMB":
+                    heapBudgetMB = Integer.parseInt(args[++i]);
+                    break;
+                case "-spillDir":
+                    spillDir = args[++i];
+                    break;
+                case "-nearDuplicates":
+                    nearThreshold = Double.parseDouble(args[++i]);
+                    if (nearThreshold <= 0 || nearThreshold > 1) {
+                        throw new IllegalArgumentException("the threshold must be in (0, 1]: " + nearThreshold);
+                    }
+                    break;
+                case "-bands":
+                    bands = Integer.parseInt(args[++i]);
+                    break;
+                case "-report":
+                    reportPath = args[++i];
+                    break;
                 default:
                     throw new IllegalArgumentException("unknown parameter " + args[i]);
             }
         }
 
-        if (indexPath == null || outPath == null) {
+        if (indexPath == null || (outPath == null && !mode.equals("inPlace")) || numThreads <= 0) {
             System.err.println("Usage: " + usage);
             System.exit(1);
         }
+        if (nearThreshold > 0 && heapBudgetMB > 0) {
+            throw new IllegalArgumentException("-nearDuplicates keeps the sketches in memory, it cannot be used with -heapBudgetMB");
+        }
+        if (nearThreshold > 0 && reportPath == null) {
+            // Junto a la salida, o junto al (primer) índice si se borra en él
+            String base = mode.equals("inPlace") ? indexPath.split(",")[0] : outPath;
+            reportPath = Paths.get(base).toAbsolutePath().normalize() + "-clusters.tsv";
+        }
 
-        DirectoryReader reader = DirectoryReader.open(FSDirectory.open(Paths.get(indexPath)));
-        int numDocs = reader.numDocs();
-        long numTerms = reader.getSumTotalTermFreq("contents");
-        System.out.println("Original index at: " + indexPath);
-        System.out.println("Number of documents in the original index: " + numDocs);
-        System.out.println("Number of terms in the original index: " + numTerms);
-
-        FSDirectory outDir = FSDirectory.open(Paths.get(outPath));
-        IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer());
-        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);//Para sobreescribir fichero de salida
-        IndexWriter writer = new IndexWriter(outDir, config);
+        // Un índice, o todos los shards leídos como uno
+        try (ShardSet shards = ShardSet.open(indexPath)) {
+            IndexReader reader = shards.reader();
+            int numDocs = reader.numDocs();
+            long numTerms = reader.getSumTotalTermFreq("contents");
+            System.out.println("Original index at: " + indexPath);
+            System.out.println("Number of documents in the original index: " + numDocs);
+            System.out.println("Number of terms in the original index: " + numTerms);
 
-        ArrayList<String> contentsList = new ArrayList<>();
-        String contents;
+            List<LeafReaderContext> leaves = reader.leaves();
+            Summary summary = new Summary();
+            summary.threads = numThreads;
+            summary.segments = leaves.size();
+            FixedBitSet[] duplicates;
+            if (nearThreshold > 0) {
+                duplicates = findNearDuplicates(reader, numThreads, nearThreshold,
+                        bands > 0 ? bands : NearDuplicateFinder.defaultBands(nearThreshold), Paths.get(reportPath), summary);
+            } else if (heapBudgetMB > 0) {
+                duplicates = findDuplicatesExternal(leaves, numThreads, heapBudgetMB, spillDir, summary);
+            } else {
+                duplicates = findDuplicates(leaves, numThreads, summary);
+            }
 
-        for (int i = 0; i < numDocs; i++) {
-            Document doc = reader.document(i);
-            IndexableField contentsField = doc.getField("contents");
-            if (contentsField != null) {
-                contents = doc.get("contents");
+            long start = System.nanoTime();
+            if (mode.equals("inPlace")) {
+                deleteInPlace(shards, duplicates);
+                outPath = indexPath;
             } else {
-                contents = doc.get("hash");
+                FSDirectory outDir = FSDirectory.open(Paths.get(outPath));
+                IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer());
+                config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);//Para sobreescribir fichero de salida
+                try (IndexWriter writer = new IndexWriter(outDir, config)) {
+                    if (mode.equals("copy")) {
+                        copy(writer, leaves, duplicates);
+                    } else {
+                        reindex(writer, leaves, duplicates);
+                    }
+                }
+            }
+            summary.writeNanos = System.nanoTime() - start;
+            summary.print();
+        }
+
+        try (IndexReader reader = ShardSet.openReader(outPath)) {
+            int numDocs = reader.numDocs();
+            long numTerms = reader.getSumTotalTermFreq("contents");
+
+            System.out.println((mode.equals("inPlace") ? "Index updated at: " : "New index created at: ") + outPath);
+            System.out.println("Number of documents in the new index: " + numDocs);
+            System.out.println("Number of unique terms in the new index: " + numTerms);
+            if (mode.equals("inPlace")) {
+                // Las estadísticas de términos no cambian hasta que se fusionen los segmentos
+                System.out.println("(terms of the deleted documents are counted until their segments are merged)");
+            }
+        }
+    }
+
+    /**
+     * Devuelve, por cada hoja, los documentos vivos cuyo contenido ya tenía un documento anterior
+     * en orden de hojas, que es el que se queda. Las huellas (128 bits del SHA-256 del texto, ver
+     * {@link DocFingerprints}) se leen de cada hoja en paralelo; después se insertan en orden en un
+     * {@link LongPairHashSet}, lo que es mucho más barato.
+     */
+    static FixedBitSet[] findDuplicates(List<LeafReaderContext> leaves, int numThreads, Summary summary)
+            throws Exception {
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        List<Future<LeafFingerprints>> futures = new ArrayList<>();
+        try {
+            // Las hojas grandes primero, para que ninguna quede sola al final
+            List<LeafReaderContext> bySize = new ArrayList<>(leaves);
+            bySize.sort((a, b) -> Integer.compare(b.reader().maxDoc(), a.reader().maxDoc()));
+            for (LeafReaderContext ctx : bySize) {
+                futures.add(executor.submit(() -> LeafFingerprints.read(ctx.reader())));
             }
+            LeafFingerprints[] fingerprints = new LeafFingerprints[leaves.size()];
+            for (int i = 0; i < bySize.size(); i++) {
+                fingerprints[bySize.get(i).ord] = futures.get(i).get();
+            }
+            summary.readNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            FixedBitSet[] duplicates = new FixedBitSet[leaves.size()];
+            int expected = 0;
+            for (LeafFingerprints leaf : fingerprints) {
+                expected += leaf.present.cardinality();
+            }
+            LongPairHashSet seen = new LongPairHashSet(expected);
+            for (int ord = 0; ord < fingerprints.length; ord++) {
+                LeafFingerprints leaf = fingerprints[ord];
+                FixedBitSet leafDuplicates = new FixedBitSet(leaf.present.length());
+                for (int i = 0; i < leaf.present.length(); i++) {
+                    if (leaf.present.get(i) && !seen.add(leaf.values[2 * i], leaf.values[2 * i + 1])) {
+                        leafDuplicates.set(i);
+                        summary.duplicates++;
+                    }
+                }
+                summary.liveDocs += leaf.liveDocs;
+                summary.withoutFingerprint += leaf.liveDocs - leaf.present.cardinality();
+                duplicates[ord] = leafDuplicates;
+            }
+            summary.distinct = seen.size();
+            summary.setBytes = seen.ramBytesUsed();
+            summary.detectNanos = System.nanoTime() - start;
+            return duplicates;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Como {@link #findDuplicates}, pero con la memoria acotada: las huellas se ordenan fuera del
+     * heap con un {@link ExternalDuplicateFinder}. Del presupuesto salen primero los bitsets de
+     * borrados (un bit por documento) y los lotes de cada hilo; el resto es el buffer de
+     * ordenación.
+     */
+    static FixedBitSet[] findDuplicatesExternal(List<LeafReaderContext> leaves, int numThreads,
+                                                int heapBudgetMB, String spillDir, Summary summary)
+            throws Exception {
+        long start = System.nanoTime();
+        int[] maxDocs = new int[leaves.size()];
+        long bitsetBytes = 0;
+        for (LeafReaderContext ctx : leaves) {
+            maxDocs[ctx.ord] = ctx.reader().maxDoc();
+            bitsetBytes += (ctx.reader().maxDoc() + 63L) / 64 * Long.BYTES;
+        }
+        long batchBytes = (long) numThreads * BATCH_RECORDS * ExternalDuplicateFinder.RECORD_BYTES;
+        long bufferBytes = heapBudgetMB * 1024L * 1024L - bitsetBytes - batchBytes;
+        if (bufferBytes < (long) BATCH_RECORDS * ExternalDuplicateFinder.RECORD_BYTES) {
+            throw new IllegalArgumentException("-heapBudgetMB " + heapBudgetMB
+                    + " leaves no room for the sort buffer, the delete bitsets alone take "
+                    + (bitsetBytes >> 20) + " MB");
+        }
+        int bufferRecords = (int) Math.min(Integer.MAX_VALUE / ExternalDuplicateFinder.RECORD_LONGS,
+                bufferBytes / ExternalDuplicateFinder.RECORD_BYTES);
+        Path spillPath = spillDir == null
+                ? Files.createTempDirectory("RemoveDuplicates-")
+                : Files.createTempDirectory(Files.createDirectories(Paths.get(spillDir)), "RemoveDuplicates-");
+
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try (ExternalDuplicateFinder finder = new ExternalDuplicateFinder(spillPath, bufferRecords)) {
+            List<Future<int[]>> futures = new ArrayList<>();
+            for (LeafReaderContext ctx : leaves) {
+                futures.add(executor.submit(() -> spillLeaf(ctx, finder)));
+            }
+            for (Future<int[]> future : futures) {
+                int[] counts = future.get();
+                summary.liveDocs += counts[0];
+                summary.withoutFingerprint += counts[0] - counts[1];
+            }
+            summary.readNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            FixedBitSet[] duplicates = finder.finish(maxDocs, summary);
+            summary.setBytes = (long) bufferRecords * ExternalDuplicateFinder.RECORD_BYTES;
+            summary.runs = finder.runs();
+            summary.spillBytes = finder.spillBytes();
+            summary.detectNanos = System.nanoTime() - start;
+            return duplicates;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Devuelve, por cada hoja, los documentos de cada grupo de casi duplicados salvo el primero en
+     * orden de hojas, y escribe los grupos en report. Los sketches MinHash de cada hoja se leen (o
+     * se reconstruyen a partir de los vectores de términos o de las postings) en paralelo; los
+     * grupos se forman después con LSH en un {@link NearDuplicateFinder}.
+     */
+    static FixedBitSet[] findNearDuplicates(IndexReader reader, int numThreads, double threshold, int bands,
+                                            Path report, Summary summary) throws Exception {
+        long start = System.nanoTime();
+        List<LeafReaderContext> leaves = reader.leaves();
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        List<Future<NearDuplicateFinder.LeafSketches>> futures = new ArrayList<>();
+        NearDuplicateFinder.LeafSketches[] sketches = new NearDuplicateFinder.LeafSketches[leaves.size()];
+        int[] docBases = new int[leaves.size()];
+        try {
+            List<LeafReaderContext> bySize = new ArrayList<>(leaves);
+            bySize.sort((a, b) -> Integer.compare(b.reader().maxDoc(), a.reader().maxDoc()));
+            for (LeafReaderContext ctx : bySize) {
+                futures.add(executor.submit(() -> NearDuplicateFinder.LeafSketches.read(ctx.reader())));
+            }
+            for (int i = 0; i < bySize.size(); i++) {
+                LeafReaderContext ctx = bySize.get(i);
+                sketches[ctx.ord] = futures.get(i).get();
+                docBases[ctx.ord] = ctx.docBase;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        for (NearDuplicateFinder.LeafSketches leaf : sketches) {
+            summary.liveDocs += leaf.liveDocs;
+            summary.withoutFingerprint += leaf.liveDocs - leaf.present.cardinality();
+            summary.fromDocValues += leaf.fromDocValues;
+            summary.fromVectors += leaf.fromVectors;
+            summary.fromPostings += leaf.fromPostings;
+            summary.setBytes += (long) leaf.values.length * Integer.BYTES;
+        }
+        summary.readNanos = System.nanoTime() - start;
 
-            if (contentsList.contains(contents)) {
+        start = System.nanoTime();
+        NearDuplicateFinder finder = new NearDuplicateFinder(threshold, bands, sketches, docBases);
+        FixedBitSet[] duplicates = finder.find();
+        for (FixedBitSet leafDuplicates : duplicates) {
+            summary.duplicates += leafDuplicates.cardinality();
+        }
+        summary.distinct = summary.liveDocs - summary.withoutFingerprint - summary.duplicates;
+        summary.threshold = threshold;
+        summary.bands = finder.bands();
+        summary.rows = finder.rows();
+        summary.candidates = finder.candidates();
+        summary.clusters = finder.clusters();
+        summary.largestCluster = finder.largestCluster();
+        finder.writeReport(report, reader);
+        summary.report = report;
+        summary.detectNanos = System.nanoTime() - start;
+        return duplicates;
+    }
+
+    /* Pasa las huellas de una hoja al finder; devuelve los documentos vivos y los que tienen huella. */
+    private static int[] spillLeaf(LeafReaderContext ctx, ExternalDuplicateFinder finder) throws Exception {
+        LeafReader leaf = ctx.reader();
+        DocFingerprints reader = new DocFingerprints();
+        long[] fingerprint = new long[2];
+        long[] batch = new long[BATCH_RECORDS * ExternalDuplicateFinder.RECORD_LONGS];
+        int n = 0;
+        int live = 0;
+        int present = 0;
+        Bits liveDocs = leaf.getLiveDocs();
+        for (int i = 0; i < leaf.maxDoc(); i++) {
+            if (liveDocs != null && !liveDocs.get(i)) {
                 continue;
             }
+            live++;
+            if (!reader.read(leaf, i, fingerprint)) {
+                continue;
+            }
+            present++;
+            int o = n * ExternalDuplicateFinder.RECORD_LONGS;
+            batch[o] = fingerprint[0];
+            batch[o + 1] = fingerprint[1];
+            batch[o + 2] = (long) ctx.ord << 32 | i;
+            if (++n == BATCH_RECORDS) {
+                finder.add(batch, n);
+                n = 0;
+            }
+        }
+        finder.add(batch, n);
+        return new int[] {live, present};
+    }
 
-            contentsList.add(contents);
+    /* Huellas de los documentos vivos de una hoja: values[2 * doc] y values[2 * doc + 1]. */
+    static final class LeafFingerprints {
+        final long[] values;
+        final FixedBitSet present;
+        int liveDocs;
 
-            writer.addDocument(doc);
+        private LeafFingerprints(int maxDoc) {
+            values = new long[2 * maxDoc];
+            present = new FixedBitSet(maxDoc);
         }
 
-        reader.close();
-        writer.close();
+        static LeafFingerprints read(LeafReader leaf) throws Exception {
+            LeafFingerprints fingerprints = new LeafFingerprints(leaf.maxDoc());
+            DocFingerprints reader = new DocFingerprints();
+            long[] fingerprint = new long[2];
+            Bits liveDocs = leaf.getLiveDocs();
+            for (int i = 0; i < leaf.maxDoc(); i++) {
+                // Los documentos borrados no cuentan
+                if (liveDocs != null && !liveDocs.get(i)) {
+                    continue;
+                }
+                fingerprints.liveDocs++;
+                if (reader.read(leaf, i, fingerprint)) {
+                    fingerprints.values[2 * i] = fingerprint[0];
+                    fingerprints.values[2 * i + 1] = fingerprint[1];
+                    fingerprints.present.set(i);
+                }
+            }
+            return fingerprints;
+        }
+    }
 
-        reader = DirectoryReader.open(FSDirectory.open(Paths.get(outPath)));
-        numDocs = reader.numDocs();
-        numTerms = reader.getSumTotalTermFreq("contents");
+    /* Recuentos y tiempos de una ejecución. */
+    static final class Summary {
+        int threads;
+        int segments;
+        long liveDocs;
+        long duplicates;
+        long distinct;
+        long withoutFingerprint;
+        long setBytes;
+        int runs;
+        long spillBytes;
+        long readNanos;
+        long detectNanos;
+        long writeNanos;
+        /* Sólo con -nearDuplicates. */
+        double threshold;
+        int bands;
+        int rows;
+        long fromDocValues;
+        long fromVectors;
+        long fromPostings;
+        long candidates;
+        long clusters;
+        long largestCluster;
+        Path report;
 
-        System.out.println("New index created at: " + outPath);
-        System.out.println("Number of documents in the new index: " + numDocs);
-        System.out.println("Number of unique terms in the new index: " + numTerms);
+        void print() {
+            if (report != null) {
+                printNear();
+                return;
+            }
+            System.out.printf("Duplicate detection: %d live documents in %d segments with %d threads, %d duplicates"
+                            + " of %d distinct contents, %d documents without contents or hash%n",
+                    liveDocs, segments, threads, duplicates, distinct, withoutFingerprint);
+            String detection = runs == 0
+                    ? String.format("%.1f MB set", setBytes / (1024.0 * 1024.0))
+                    : String.format("%.1f MB sort buffer, %d runs, %.1f MB spilled",
+                            setBytes / (1024.0 * 1024.0), runs, spillBytes / (1024.0 * 1024.0));
+            System.out.printf("Fingerprints read in %d ms, duplicates found in %d ms (%s),"
+                            + " output written in %d ms%n",
+                    readNanos / 1_000_000, detectNanos / 1_000_000, detection, writeNanos / 1_000_000);
+        }
+
+        private void printNear() {
+            System.out.printf("Near-duplicate detection: %d live documents in %d segments with %d threads,"
+                            + " %d near duplicates in %d clusters (largest %d) at Jaccard >= %.2f,"
+                            + " %d documents without terms%n",
+                    liveDocs, segments, threads, duplicates, clusters, largestCluster, threshold, withoutFingerprint);
+            System.out.printf("Sketches read in %d ms (%d from doc values, %d from term vectors, %d from postings,"
+                            + " %.1f MB), %d candidate pairs verified in %d ms with %d bands of %d rows,"
+                            + " output written in %d ms%n",
+                    readNanos / 1_000_000, fromDocValues, fromVectors, fromPostings, setBytes / (1024.0 * 1024.0),
+                    candidates, detectNanos / 1_000_000, bands, rows, writeNanos / 1_000_000);
+            System.out.println("Clusters written to: " + report);
+        }
+    }
 
-        reader.close();
+    /**
+     * Copia los segmentos tal cual, sin volver a analizar nada: cada hoja se envuelve en un
+     * {@link DroppingCodecReader} que da por borrados sus duplicados.
+     */
+    static void copy(IndexWriter writer, List<LeafReaderContext> leaves, FixedBitSet[] duplicates)
+            throws Exception {
+        List<CodecReader> readers = new ArrayList<>();
+        for (LeafReaderContext ctx : leaves) {
+            CodecReader leaf = SlowCodecReaderWrapper.wrap(ctx.reader());
+            readers.add(new DroppingCodecReader(leaf, duplicates[ctx.ord]));
+        }
+        writer.addIndexes(readers.toArray(new CodecReader[0]));
+    }
+
+    /* El modo original: añade los campos almacenados de los documentos que se quedan. */
+    static void reindex(IndexWriter writer, List<LeafReaderContext> leaves, FixedBitSet[] duplicates)
+            throws Exception {
+        for (LeafReaderContext ctx : leaves) {
+            LeafReader leaf = ctx.reader();
+            Bits liveDocs = leaf.getLiveDocs();
+            for (int i = 0; i < leaf.maxDoc(); i++) {
+                if ((liveDocs == null || liveDocs.get(i)) && !duplicates[ctx.ord].get(i)) {
+                    writer.addDocument(leaf.document(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Borra los duplicados del propio índice (de cada shard) por su número de documento, con
+     * {@link IndexWriter#tryDeleteDocument} sobre un lector NRT del writer de cada shard. No hace
+     * falta ningún campo que identifique a los documentos, y un "path" repetido no arrastra a la
+     * copia que se queda. No se copia ni se analiza ningún documento.
+     */
+    static void deleteInPlace(ShardSet shards, FixedBitSet[] duplicates) throws Exception {
+        List<Directory> dirs = shards.directories();
+        int ord = 0;
+        for (int s = 0; s < dirs.size(); s++) {
+            IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer());
+            config.setOpenMode(IndexWriterConfig.OpenMode.APPEND);
+            // Sin fusiones mientras se borra: tryDeleteDocument falla en los segmentos fusionados
+            config.setMergePolicy(NoMergePolicy.INSTANCE);
+            try (IndexWriter writer = new IndexWriter(dirs.get(s), config);
+                 DirectoryReader nrt = DirectoryReader.open(writer)) {
+                // Los segmentos son los mismos que los del ShardSet, con los mismos números de documento
+                Map<String, LeafReader> byName = new HashMap<>();
+                for (LeafReaderContext ctx : nrt.leaves()) {
+                    byName.put(segmentName(ctx.reader()), ctx.reader());
+                }
+                // Las hojas del ShardSet van shard a shard
+                for (LeafReaderContext ctx : shards.shard(s).leaves()) {
+                    FixedBitSet leafDuplicates = duplicates[ord++];
+                    String name = segmentName(ctx.reader());
+                    LeafReader leaf = byName.get(name);
+                    if (leaf == null) {
+                        throw new IllegalStateException("segment " + name + " of " + dirs.get(s)
+                                + " changed while looking for duplicates");
+                    }
+                    for (int i = 0; i < leafDuplicates.length(); i++) {
+                        if (!leafDuplicates.get(i)) {
+                            continue;
+                        }
+                        if (writer.tryDeleteDocument(leaf, i) == -1) {
+                            throw new IllegalStateException("could not delete document " + i + " of segment "
+                                    + name + " in " + dirs.get(s));
+                        }
+                    }
+                }
+                writer.commit();
+            }
+        }
+    }
+
+    private static String segmentName(LeafReader leaf) {
+        return ((SegmentReader) FilterLeafReader.unwrap(leaf)).getSegmentName();
+    }
+
+    /**
+     * Hoja de la que se quitan unos documentos marcándolos como borrados en sus live docs, para
+     * copiarla con {@link IndexWriter#addIndexes(CodecReader...)}.
+     */
+    static final class DroppingCodecReader extends FilterCodecReader {
+        private final Bits liveDocs;
+        private final int numDocs;
+
+        DroppingCodecReader(CodecReader in, FixedBitSet dropped) {
+            super(in);
+            Bits inLiveDocs = in.getLiveDocs();
+            FixedBitSet live = new FixedBitSet(in.maxDoc());
+            if (inLiveDocs == null) {
+                live.set(0, in.maxDoc());
+            } else {
+                for (int i = 0; i < in.maxDoc(); i++) {
+                    if (inLiveDocs.get(i)) {
+                        live.set(i);
+                    }
+                }
+            }
+            live.andNot(dropped);
+            this.liveDocs = live;
+            this.numDocs = live.cardinality();
+        }
+
+        @Override
+        public Bits getLiveDocs() {
+            return liveDocs;
+        }
+
+        @Override
+        public int numDocs() {
+            return numDocs;
+        }
+
+        @Override
+        public CacheHelper getCoreCacheHelper() {
+            return null;
+        }
+
+        @Override
+        public CacheHelper getReaderCacheHelper() {
+            return null;
+        }
     }
-}
\ No newline at end of file
+}
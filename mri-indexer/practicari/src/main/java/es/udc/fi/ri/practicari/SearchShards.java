@@ -0,0 +1,70 @@
+package es.udc.fi.ri.practicari;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+
+public class SearchShards {
+    public static void main(String[] args) throws Exception {
+        String usage =
+                "java es.udc.fi.ri.practicari.SearchShards"
+                        + " -index INDEX_PATH[,INDEX_PATH...] -query QUERY [-top NUM] [-field FIELD] [-parallel]\n\n"
+                        + "INDEX_PATH can be an index or a shard set written by IndexFiles -shards";
+        String indexPath = null;
+        String queryString = null;
+        String field = "contents";
+        int top = 10;
+        boolean parallel = false;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-index":
+                    indexPath = args[++i];
+                    break;
+                case "-query":
+                    queryString = args[++i];
+                    break;
+                case "-top":
+                    top = Integer.parseInt(args[++i]);
+                    break;
+                case "-field":
+                    field = args[++i];
+                    break;
+                case "-parallel":
+                    parallel = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown parameter " + args[i]);
+            }
+        }
+
+        if (indexPath == null || queryString == null || top <= 0) {
+            System.err.println("Usage: " + usage);
+            System.exit(1);
+        }
+
+        try (ShardSet shards = ShardSet.open(indexPath)) {
+            Query query = new QueryParser(field, new StandardAnalyzer()).parse(queryString);
+            IndexSearcher searcher = new IndexSearcher(shards.reader());
+            TopDocs hits;
+            if (parallel) {
+                // Una búsqueda por shard en paralelo, con las estadísticas de toda la colección
+                hits = shards.search(query, top);
+            } else {
+                hits = searcher.search(query, top);
+            }
+
+            System.out.println(hits.totalHits + " matching documents in " + shards.size() + " shards");
+            for (int i = 0; i < hits.scoreDocs.length; i++) {
+                ScoreDoc hit = hits.scoreDocs[i];
+                int doc = parallel ? shards.globalDoc(hit.shardIndex, hit.doc) : hit.doc;
+                Document document = searcher.doc(doc);
+                System.out.printf("%3d. %10.6f  doc %d  %s%n", i + 1, hit.score, doc, document.get("path"));
+            }
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package es.udc.fi.ri.practicari;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.StringHelper;
+
+/**
+ * A set of independent indexes that together hold one collection, as written by {@link IndexFiles}
+ * with -shards: each document goes to the shard chosen by a hash of its "path", so updates and
+ * deletions of a file always reach the same shard.
+ *
+ * <p>A shard set is a directory with a {@link #MANIFEST} file and one index per shard in the
+ * subdirectories shard-0 ... shard-(N-1). Tools taking -index accept, besides a plain index, the
+ * directory of a shard set or a comma separated list of indexes, see {@link #open(String)}.
+ *
+ * <p>The shards can be read as one {@link MultiReader}, whose doc ids are those of the shards one
+ * after another, or searched in parallel with {@link #search(Query, int)}. Both score with the
+ * statistics of the whole collection, so a document gets the same score it would get in a single
+ * index.
+ */
+final class ShardSet implements Closeable {
+  static final String MANIFEST = "shards.properties";
+
+  private final List<DirectoryReader> shards;
+  private final MultiReader reader;
+
+  private ShardSet(List<DirectoryReader> shards) throws IOException {
+    this.shards = shards;
+    // Closing the MultiReader closes the shards
+    this.reader = new MultiReader(shards.toArray(new IndexReader[0]), true);
+  }
+
+  /** Returns the shard of the document indexed with the given path, out of numShards. */
+  static int shardOf(String path, int numShards) {
+    BytesRef bytes = new BytesRef(path);
+    // Unlike String.hashCode, well spread over paths sharing a long prefix
+    int hash = StringHelper.murmurhash3_x86_32(bytes, 0);
+    return Math.floorMod(hash, numShards);
+  }
+
+  static Path shardPath(Path root, int shard) {
+    return root.resolve("shard-" + shard);
+  }
+
+  /** Writes the manifest of a shard set of numShards shards under root, creating root if needed. */
+  static void create(Path root, int numShards) throws IOException {
+    Files.createDirectories(root);
+    Properties manifest = new Properties();
+    manifest.setProperty("shards", Integer.toString(numShards));
+    manifest.setProperty("routing", "murmurhash3_x86_32(path) mod shards");
+    try (Writer out = Files.newBufferedWriter(root.resolve(MANIFEST), StandardCharsets.UTF_8)) {
+      manifest.store(out, "Shard set written by IndexFiles");
+    }
+  }
+
+  /** Returns the number of shards of the shard set at root, or 0 if root is not one. */
+  static int numShards(Path root) throws IOException {
+    Path file = root.resolve(MANIFEST);
+    if (!Files.isRegularFile(file)) {
+      return 0;
+    }
+    Properties manifest = new Properties();
+    try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      manifest.load(in);
+    }
+    return Integer.parseInt(manifest.getProperty("shards"));
+  }
+
+  /**
+   * Opens the indexes named by spec: a shard set directory, a single index, or a comma separated
+   * list of either.
+   */
+  static ShardSet open(String spec) throws IOException {
+    return new ShardSet(openShards(spec));
+  }
+
+  /** Opens the indexes named by spec as a single reader, see {@link #open(String)}. */
+  static IndexReader openReader(String spec) throws IOException {
+    List<DirectoryReader> shards = openShards(spec);
+    if (shards.size() == 1) {
+      // A plain index keeps its own reader, and its doc ids
+      return shards.get(0);
+    }
+    // Closing the MultiReader closes the shards
+    return new MultiReader(shards.toArray(new IndexReader[0]), true);
+  }
+
+  /* The reader of every index named by spec, in order. */
+  private static List<DirectoryReader> openShards(String spec) throws IOException {
+    List<DirectoryReader> shards = new ArrayList<>();
+    try {
+      for (String part : spec.split(",")) {
+        Path root = Paths.get(part.trim());
+        int numShards = numShards(root);
+        if (numShards == 0) {
+          shards.add(DirectoryReader.open(FSDirectory.open(root)));
+        }
+        for (int i = 0; i < numShards; i++) {
+          shards.add(DirectoryReader.open(FSDirectory.open(shardPath(root, i))));
+        }
+      }
+      return shards;
+    } catch (IOException | RuntimeException e) {
+      IOUtils.closeWhileHandlingException(shards);
+      throw e;
+    }
+  }
+
+  /** Returns the directory of every shard, in order. */
+  List<Directory> directories() {
+    List<Directory> dirs = new ArrayList<>();
+    for (DirectoryReader shard : shards) {
+      dirs.add(shard.directory());
+    }
+    return dirs;
+  }
+
+  /** Returns the shards read as a single index. */
+  IndexReader reader() {
+    return reader;
+  }
+
+  int size() {
+    return shards.size();
+  }
+
+  /** Returns the reader of the given shard. */
+  DirectoryReader shard(int shard) {
+    return shards.get(shard);
+  }
+
+  /**
+   * Searches every shard in its own thread and merges their top hits. The hits keep the doc ids
+   * of their shard, with the shard in {@link ScoreDoc#shardIndex}; use
+   * {@link #globalDoc} to turn them into doc ids of {@link #reader()}.
+   */
+  TopDocs search(Query query, int n) throws IOException {
+    // Statistics of the whole collection, which every shard searcher scores with
+    IndexSearcher global = new IndexSearcher(reader);
+    Query rewritten = global.rewrite(query);
+    ExecutorService executor = Executors.newFixedThreadPool(shards.size());
+    try {
+      List<Future<TopDocs>> futures = new ArrayList<>();
+      for (DirectoryReader shard : shards) {
+        IndexSearcher searcher = new ShardSearcher(shard, global);
+        futures.add(executor.submit(() -> searcher.search(rewritten, n)));
+      }
+      TopDocs[] hits = new TopDocs[futures.size()];
+      for (int i = 0; i < hits.length; i++) {
+        hits[i] = futures.get(i).get();
+        // merge breaks ties by shard, and keeps it in the merged hits
+        for (ScoreDoc hit : hits[i].scoreDocs) {
+          hit.shardIndex = i;
+        }
+      }
+      return TopDocs.merge(n, hits);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /** Returns the doc id in {@link #reader()} of doc in the given shard. */
+  int globalDoc(int shard, int doc) {
+    int base = 0;
+    for (int i = 0; i < shard; i++) {
+      base += shards.get(i).maxDoc();
+    }
+    return base + doc;
+  }
+
+  @Override
+  public void close() throws IOException {
+    reader.close();
+  }
+
+  /** Searcher of one shard that takes the term and field statistics from the whole collection. */
+  private static final class ShardSearcher extends IndexSearcher {
+    private final IndexSearcher global;
+
+    ShardSearcher(IndexReader shard, IndexSearcher global) {
+      super(shard);
+      this.global = global;
+    }
+
+    @Override
+    public TermStatistics termStatistics(Term term, int docFreq, long totalTermFreq)
+        throws IOException {
+      IndexReader all = global.getIndexReader();
+      int globalDocFreq = all.docFreq(term);
+      if (globalDocFreq == 0) {
+        return null;
+      }
+      return global.termStatistics(term, globalDocFreq, all.totalTermFreq(term));
+    }
+
+    @Override
+    public CollectionStatistics collectionStatistics(String field) throws IOException {
+      return global.collectionStatistics(field);
+    }
+  }
+}
@@ -0,0 +1,46 @@
+package es.udc.fi.ri.practicari;
+
+import java.io.IOException;
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.util.BytesRefBuilder;
+
+/**
+ * Feeds every token that goes through it to a {@link Signatures}, so that the near-duplicate
+ * signatures of a document are computed while its contents field is being indexed. The signatures
+ * are cleared when the stream is reset, so a filter can be reused from one document to the next as
+ * long as its input is the same.
+ */
+final class SignatureFilter extends TokenFilter {
+  private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+  private final Signatures signatures;
+  private final BytesRefBuilder term = new BytesRefBuilder();
+
+  SignatureFilter(TokenStream input, Signatures signatures) {
+    super(input);
+    this.signatures = signatures;
+  }
+
+  @Override
+  public boolean incrementToken() throws IOException {
+    if (!input.incrementToken()) {
+      return false;
+    }
+    // Hashed as the UTF-8 bytes of the indexed term, as a term vector would return it
+    term.copyChars(termAtt);
+    signatures.add(term.get());
+    return true;
+  }
+
+  /** Returns whether this filter wraps the given stream. */
+  boolean wraps(TokenStream stream) {
+    return input == stream;
+  }
+
+  @Override
+  public void reset() throws IOException {
+    super.reset();
+    signatures.reset();
+  }
+}
@@ -0,0 +1,143 @@
+package es.udc.fi.ri.practicari;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Near-duplicate signatures of the text of a document, computed from its terms one at a time:
+ *
+ * <ul>
+ *   <li>a 64-bit SimHash, where every occurrence of a term votes on each bit with the bits of the
+ *       term hash, so documents sharing most of their text differ in few bits, and
+ *   <li>a MinHash sketch of {@link #NUM_HASHES} ints, the minimum of as many hash functions over
+ *       the distinct terms, whose share of equal values between two documents estimates the
+ *       Jaccard similarity of their sets of terms.
+ * </ul>
+ *
+ * <p>Both only depend on the terms, not on their order, and can be rebuilt from the term vectors
+ * or postings of an index. {@link IndexFiles} stores them in the {@link #SIMHASH_FIELD} numeric
+ * doc values and the {@link #MINHASH_FIELD} binary doc values when run with -signatures.
+ */
+final class Signatures {
+  static final String SIMHASH_FIELD = "simhash";
+  static final String MINHASH_FIELD = "minhash";
+  static final int NUM_HASHES = 32;
+
+  /* Seeds of the MinHash functions, the same for every run. */
+  private static final long[] SEEDS = new long[NUM_HASHES];
+
+  static {
+    SplittableRandom random = new SplittableRandom(0x5eed5eedL);
+    for (int i = 0; i < NUM_HASHES; i++) {
+      SEEDS[i] = random.nextLong();
+    }
+  }
+
+  private final int[] votes = new int[Long.SIZE];
+  private final int[] minHash = new int[NUM_HASHES];
+  private final byte[] encoded = new byte[NUM_HASHES * Integer.BYTES];
+  private final BytesRef encodedRef = new BytesRef(encoded);
+
+  Signatures() {
+    reset();
+  }
+
+  /** Clears the signatures for a new document. */
+  void reset() {
+    Arrays.fill(votes, 0);
+    // Compared unsigned, so this is the largest value
+    Arrays.fill(minHash, -1);
+  }
+
+  /** Adds an occurrence of the given term, as UTF-8 bytes. */
+  void add(BytesRef term) {
+    long hash = termHash(term);
+    for (int bit = 0; bit < Long.SIZE; bit++) {
+      votes[bit] += ((hash >>> bit) & 1) != 0 ? 1 : -1;
+    }
+    for (int i = 0; i < NUM_HASHES; i++) {
+      int h = minHashValue(hash, i);
+      if (Integer.compareUnsigned(h, minHash[i]) < 0) {
+        minHash[i] = h;
+      }
+    }
+  }
+
+  /**
+   * Puts in values the value of every MinHash function for a term with the given {@link
+   * #termHash}. A sketch is the unsigned minimum of these values over the distinct terms.
+   */
+  static void minHashValues(long termHash, int[] values) {
+    for (int i = 0; i < NUM_HASHES; i++) {
+      values[i] = minHashValue(termHash, i);
+    }
+  }
+
+  private static int minHashValue(long termHash, int function) {
+    return (int) (mix(termHash ^ SEEDS[function]) >>> 32);
+  }
+
+  /** Returns the SimHash of the terms added since the last reset. */
+  long simHash() {
+    long simHash = 0;
+    for (int bit = 0; bit < Long.SIZE; bit++) {
+      if (votes[bit] > 0) {
+        simHash |= 1L << bit;
+      }
+    }
+    return simHash;
+  }
+
+  /**
+   * Returns the MinHash sketch of the terms added since the last reset as NUM_HASHES big-endian
+   * ints. The bytes are overwritten by the next call.
+   */
+  BytesRef minHash() {
+    for (int i = 0; i < NUM_HASHES; i++) {
+      int h = minHash[i];
+      encoded[4 * i] = (byte) (h >>> 24);
+      encoded[4 * i + 1] = (byte) (h >>> 16);
+      encoded[4 * i + 2] = (byte) (h >>> 8);
+      encoded[4 * i + 3] = (byte) h;
+    }
+    return encodedRef;
+  }
+
+  /** Decodes a sketch written by {@link #minHash()} into sketch. */
+  static void decodeMinHash(BytesRef bytes, int[] sketch) {
+    for (int i = 0; i < NUM_HASHES; i++) {
+      int o = bytes.offset + 4 * i;
+      sketch[i] = (bytes.bytes[o] & 0xff) << 24 | (bytes.bytes[o + 1] & 0xff) << 16
+          | (bytes.bytes[o + 2] & 0xff) << 8 | (bytes.bytes[o + 3] & 0xff);
+    }
+  }
+
+  /** Returns the share of equal values of two sketches, an estimate of the Jaccard similarity. */
+  static double similarity(int[] a, int[] b) {
+    int equal = 0;
+    for (int i = 0; i < NUM_HASHES; i++) {
+      if (a[i] == b[i]) {
+        equal++;
+      }
+    }
+    return (double) equal / NUM_HASHES;
+  }
+
+  /** 64-bit hash of a term: FNV-1a over its bytes, then mixed so that every bit is usable. */
+  static long termHash(BytesRef term) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = term.offset, end = term.offset + term.length; i < end; i++) {
+      hash ^= term.bytes[i] & 0xff;
+      hash *= 0x100000001b3L;
+    }
+    return mix(hash);
+  }
+
+  /* Finalizer of SplitMix64. */
+  private static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+}
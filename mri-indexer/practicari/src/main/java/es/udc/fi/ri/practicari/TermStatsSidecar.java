@@ -0,0 +1,298 @@
+package es.udc.fi.ri.practicari;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.StringJoiner;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexFormatTooNewException;
+import org.apache.lucene.index.IndexFormatTooOldException;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.RandomAccessInput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.IOUtils;
+
+/**
+ * Collection statistics of every term of a field, precomputed into a file that is memory-mapped
+ * instead of being read: opening it costs a header check, whatever the number of terms.
+ *
+ * <p>For the term of ordinal ord, in the order of the terms dictionary of the whole reader, the
+ * file holds its df, its idf (numDocs / df, as in {@link TopTermsInDocs}) and its collection
+ * frequency. Terms are found by their bytes through an open addressing table of ordinals keyed by
+ * {@link Signatures#termHash}, so a lookup is a few reads of mapped memory.
+ *
+ * <p>The file records the commit generation of every index it was built from. {@link #open}
+ * rebuilds it when they do not match the reader any more, writing a temporary file that replaces
+ * the old one atomically, so other processes keep reading the old one meanwhile.
+ */
+final class TermStatsSidecar implements Closeable {
+  static final String CODEC = "TermStatsSidecar";
+  static final int VERSION = 0;
+
+  private final IndexInput in;
+  private final String commitKey;
+  private final int numDocs;
+  private final int numTerms;
+  private final int tableMask;
+  private final long docFreqStart;
+  private final long totalTermFreqStart;
+  private final long idfStart;
+  private final long termStartsStart;
+  private final long tableStart;
+  private final long bytesStart;
+
+  private TermStatsSidecar(IndexInput in) throws IOException {
+    this.in = in;
+    CodecUtil.checkHeader(in, CODEC, VERSION, VERSION);
+    commitKey = in.readString();
+    numDocs = in.readInt();
+    numTerms = in.readInt();
+    tableMask = in.readInt() - 1;
+    docFreqStart = in.getFilePointer();
+    totalTermFreqStart = docFreqStart + (long) numTerms * Integer.BYTES;
+    idfStart = totalTermFreqStart + (long) numTerms * Long.BYTES;
+    termStartsStart = idfStart + (long) numTerms * Long.BYTES;
+    tableStart = termStartsStart + (numTerms + 1L) * Long.BYTES;
+    bytesStart = tableStart + (tableMask + 1L) * Integer.BYTES;
+    // Only the footer is checked here, reading the whole file would defeat the purpose
+    CodecUtil.retrieveChecksum(in);
+  }
+
+  /**
+   * Returns the default file of the statistics of field for the -index argument of the tools:
+   * inside the index, or the shard set, or the first index of a list.
+   */
+  static Path defaultPath(String indexSpec, String field) {
+    return Paths.get(indexSpec.split(",")[0].trim()).resolve("termstats-" + field + ".bin");
+  }
+
+  /**
+   * Opens the statistics of field in file, building them first if the file is missing, damaged or
+   * from another commit of the indexes of reader.
+   */
+  static TermStatsSidecar open(IndexReader reader, String field, Path file) throws IOException {
+    String key = commitKey(reader, field);
+    TermStatsSidecar sidecar = tryOpen(file);
+    if (sidecar != null && sidecar.commitKey.equals(key)) {
+      return sidecar;
+    }
+    IOUtils.close(sidecar);
+    build(reader, field, file);
+    sidecar = tryOpen(file);
+    if (sidecar == null) {
+      throw new IOException("could not read " + file + " back after writing it");
+    }
+    return sidecar;
+  }
+
+  private static TermStatsSidecar tryOpen(Path file) throws IOException {
+    Directory dir = new MMapDirectory(file.toAbsolutePath().getParent());
+    IndexInput in = null;
+    try {
+      in = dir.openInput(file.getFileName().toString(), IOContext.READ);
+      return new TermStatsSidecar(in);
+    } catch (NoSuchFileException | EOFException | CorruptIndexException | IndexFormatTooOldException
+        | IndexFormatTooNewException e) {
+      IOUtils.closeWhileHandlingException(in);
+      return null;
+    } finally {
+      // Inputs stay valid after their MMapDirectory is closed
+      dir.close();
+    }
+  }
+
+  /**
+   * Identifies what the statistics were built from: the field, and the commit generation of each
+   * index, in order. Readers not opened from a commit have no generation to check and get -1.
+   */
+  static String commitKey(IndexReader reader, String field) {
+    StringJoiner key = new StringJoiner(",", field + ":", "");
+    IndexReaderContext context = reader.getContext();
+    if (context.children() == null || reader instanceof DirectoryReader) {
+      key.add(Long.toString(generation(reader)));
+    } else {
+      for (IndexReaderContext child : context.children()) {
+        key.add(Long.toString(generation(child.reader())));
+      }
+    }
+    return key.toString();
+  }
+
+  private static long generation(IndexReader reader) {
+    if (!(reader instanceof DirectoryReader)) {
+      return -1;
+    }
+    try {
+      return ((DirectoryReader) reader).getIndexCommit().getGeneration();
+    } catch (IOException e) {
+      return -1;
+    }
+  }
+
+  /** Writes the statistics of field in reader to file, replacing it. */
+  static void build(IndexReader reader, String field, Path file) throws IOException {
+    Path parent = file.toAbsolutePath().getParent();
+    Files.createDirectories(parent);
+    try (Directory dir = FSDirectory.open(parent)) {
+      String name = file.getFileName().toString();
+      int numTerms = 0;
+      long[] hashes = new long[16];
+      int[] docFreqs = new int[16];
+      long[] totalTermFreqs = new long[16];
+      long[] termStarts = new long[17];
+      // The bytes of the terms go to a file of their own until their size is known
+      String bytesName;
+      try (IndexOutput bytes = dir.createTempOutput(name, "terms", IOContext.DEFAULT)) {
+        bytesName = bytes.getName();
+        Terms terms = MultiTerms.getTerms(reader, field);
+        TermsEnum termsEnum = terms == null ? TermsEnum.EMPTY : terms.iterator();
+        for (BytesRef term = termsEnum.next(); term != null; term = termsEnum.next()) {
+          if (numTerms == hashes.length) {
+            hashes = ArrayUtil.grow(hashes, numTerms + 1);
+            docFreqs = ArrayUtil.grow(docFreqs, hashes.length);
+            totalTermFreqs = ArrayUtil.grow(totalTermFreqs, hashes.length);
+            termStarts = ArrayUtil.grow(termStarts, hashes.length + 1);
+          }
+          hashes[numTerms] = Signatures.termHash(term);
+          docFreqs[numTerms] = termsEnum.docFreq();
+          totalTermFreqs[numTerms] = termsEnum.totalTermFreq();
+          bytes.writeBytes(term.bytes, term.offset, term.length);
+          termStarts[++numTerms] = bytes.getFilePointer();
+        }
+      }
+
+      // At most half full, so that probes stay short
+      int tableSize = Integer.highestOneBit(Math.max(8, numTerms) * 2 - 1) << 1;
+      int[] table = new int[tableSize];
+      for (int ord = 0; ord < numTerms; ord++) {
+        int slot = (int) hashes[ord] & (tableSize - 1);
+        while (table[slot] != 0) {
+          slot = (slot + 1) & (tableSize - 1);
+        }
+        // 0 is a free slot
+        table[slot] = ord + 1;
+      }
+
+      int numDocs = reader.numDocs();
+      String tempName;
+      try (IndexOutput out = dir.createTempOutput(name, "new", IOContext.DEFAULT);
+          IndexInput bytes = dir.openInput(bytesName, IOContext.READONCE)) {
+        tempName = out.getName();
+        CodecUtil.writeHeader(out, CODEC, VERSION);
+        out.writeString(commitKey(reader, field));
+        out.writeInt(numDocs);
+        out.writeInt(numTerms);
+        out.writeInt(tableSize);
+        for (int ord = 0; ord < numTerms; ord++) {
+          out.writeInt(docFreqs[ord]);
+        }
+        for (int ord = 0; ord < numTerms; ord++) {
+          out.writeLong(totalTermFreqs[ord]);
+        }
+        for (int ord = 0; ord < numTerms; ord++) {
+          out.writeLong(Double.doubleToLongBits((double) numDocs / (double) docFreqs[ord]));
+        }
+        for (int ord = 0; ord <= numTerms; ord++) {
+          out.writeLong(termStarts[ord]);
+        }
+        for (int slot : table) {
+          out.writeInt(slot);
+        }
+        out.copyBytes(bytes, bytes.length());
+        CodecUtil.writeFooter(out);
+      } finally {
+        dir.deleteFile(bytesName);
+      }
+      dir.sync(Collections.singleton(tempName));
+      dir.rename(tempName, name);
+      dir.syncMetaData();
+    }
+  }
+
+  int numDocs() {
+    return numDocs;
+  }
+
+  int numTerms() {
+    return numTerms;
+  }
+
+  /** Returns a view to look terms up with, for the calling thread only. */
+  Lookup newLookup() throws IOException {
+    return new Lookup(in.clone());
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  /** Reads the statistics through clones of the mapped file; not thread safe. */
+  final class Lookup {
+    private final IndexInput bytes;
+    private final RandomAccessInput data;
+    private final BytesRefBuilder scratch = new BytesRefBuilder();
+
+    private Lookup(IndexInput clone) throws IOException {
+      this.bytes = clone;
+      this.data = clone.randomAccessSlice(0, clone.length());
+    }
+
+    /** Returns the ordinal of term, or -1 if the field does not have it. */
+    int ord(BytesRef term) throws IOException {
+      int slot = (int) Signatures.termHash(term) & tableMask;
+      while (true) {
+        int entry = data.readInt(tableStart + (long) slot * Integer.BYTES);
+        if (entry == 0) {
+          return -1;
+        }
+        if (term.bytesEquals(term(entry - 1))) {
+          return entry - 1;
+        }
+        slot = (slot + 1) & tableMask;
+      }
+    }
+
+    /** Returns the bytes of the term of ord, valid until the next call. */
+    BytesRef term(int ord) throws IOException {
+      long start = data.readLong(termStartsStart + (long) ord * Long.BYTES);
+      int length = (int) (data.readLong(termStartsStart + (ord + 1L) * Long.BYTES) - start);
+      scratch.grow(length);
+      scratch.setLength(length);
+      bytes.seek(bytesStart + start);
+      bytes.readBytes(scratch.bytes(), 0, length);
+      return scratch.get();
+    }
+
+    int docFreq(int ord) throws IOException {
+      return data.readInt(docFreqStart + (long) ord * Integer.BYTES);
+    }
+
+    long totalTermFreq(int ord) throws IOException {
+      return data.readLong(totalTermFreqStart + (long) ord * Long.BYTES);
+    }
+
+    double idf(int ord) throws IOException {
+      return Double.longBitsToDouble(data.readLong(idfStart + (long) ord * Long.BYTES));
+    }
+  }
+}
@@ -0,0 +1,145 @@
+package es.udc.fi.ri.practicari;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+
+/**
+ * The best terms of a document by tf·idf, with ties broken by term: a min-heap of at most size
+ * entries whose top is the worst one kept, over parallel primitive arrays. Only the bytes of the
+ * terms that enter the heap are copied, into builders that are reused, so a document takes O(size)
+ * memory whatever its number of terms.
+ *
+ * <p>{@link #clear()} makes it ready for the next document. An instance must be used by a single
+ * thread.
+ */
+final class TopTermsHeap {
+  private final int capacity;
+  /* Heap of slots; the arrays below are indexed by slot. */
+  private final int[] heap;
+  private final BytesRefBuilder[] terms;
+  private final int[] tfs;
+  private final int[] dfs;
+  private final double[] idfs;
+  private final double[] scores;
+  private int size;
+
+  TopTermsHeap(int capacity) {
+    this.capacity = capacity;
+    this.heap = new int[capacity];
+    this.terms = new BytesRefBuilder[capacity];
+    this.tfs = new int[capacity];
+    this.dfs = new int[capacity];
+    this.idfs = new double[capacity];
+    this.scores = new double[capacity];
+    for (int i = 0; i < capacity; i++) {
+      terms[i] = new BytesRefBuilder();
+    }
+  }
+
+  void clear() {
+    size = 0;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /** Offers a term of the document; it is kept if it is among the best size so far. */
+  void offer(BytesRef term, int tf, int df, double idf, double score) {
+    if (size < capacity) {
+      // Still filling up: slots are handed out in order
+      int slot = size;
+      set(slot, term, tf, df, idf, score);
+      heap[size++] = slot;
+      upHeap(size - 1);
+    } else if (capacity > 0 && !worse(score, term, heap[0])) {
+      // Replaces the worst term
+      set(heap[0], term, tf, df, idf, score);
+      downHeap(0);
+    }
+  }
+
+  private void set(int slot, BytesRef term, int tf, int df, double idf, double score) {
+    terms[slot].copyBytes(term);
+    tfs[slot] = tf;
+    dfs[slot] = df;
+    idfs[slot] = idf;
+    scores[slot] = score;
+  }
+
+  /**
+   * Removes the terms from the heap, best first, into order as slots; the accessors below read
+   * them. Returns the number of terms.
+   */
+  int drain(int[] order) {
+    int n = size;
+    for (int i = n - 1; i >= 0; i--) {
+      order[i] = heap[0];
+      heap[0] = heap[--size];
+      downHeap(0);
+    }
+    return n;
+  }
+
+  BytesRef term(int slot) {
+    return terms[slot].get();
+  }
+
+  int tf(int slot) {
+    return tfs[slot];
+  }
+
+  int df(int slot) {
+    return dfs[slot];
+  }
+
+  double idf(int slot) {
+    return idfs[slot];
+  }
+
+  double score(int slot) {
+    return scores[slot];
+  }
+
+  /* Lower score, or the same score and a greater term, is worse. */
+  private boolean worse(double score, BytesRef term, int slot) {
+    int cmp = Double.compare(score, scores[slot]);
+    return cmp < 0 || (cmp == 0 && term.compareTo(terms[slot].get()) > 0);
+  }
+
+  private boolean worse(int slotA, int slotB) {
+    return worse(scores[slotA], terms[slotA].get(), slotB);
+  }
+
+  private void upHeap(int i) {
+    int slot = heap[i];
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      if (!worse(slot, heap[parent])) {
+        break;
+      }
+      heap[i] = heap[parent];
+      i = parent;
+    }
+    heap[i] = slot;
+  }
+
+  private void downHeap(int i) {
+    int slot = heap[i];
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= size) {
+        break;
+      }
+      if (child + 1 < size && worse(heap[child + 1], heap[child])) {
+        child++;
+      }
+      if (!worse(heap[child], slot)) {
+        break;
+      }
+      heap[i] = heap[child];
+      i = child;
+    }
+    heap[i] = slot;
+  }
+}
@@ -1,91 +1,61 @@
 package es.udc.fi.ri.practicari;
 
+import org.apache.lucene.codecs.TermVectorsReader;
 import org.apache.lucene.index.*;
-import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
 
+import java.io.BufferedWriter;
 import java.io.FileWriter;
-import java.io.PrintWriter;
-import java.nio.file.Paths;
-import java.util.*;
-import java.util.stream.Collectors;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Formatter;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 
 public class TopTermsInDocs {
 
-    public static class TermWithValues {
-        private final int docId;
-        private final String term;
-        private final int tf;
-        private final int df;
-        private final double idf;
-        private final double tfidf;
-
-        public TermWithValues(int docId, String term, int tf, int df, double idf, double tfidf) {
-            this.docId = docId;
-            this.term = term;
-            this.tf = tf;
-            this.df = df;
-            this.idf = idf;
-            this.tfidf = tfidf;
-        }
-
-        public int getDocId() {
-            return docId;
-        }
-
-        public String getTerm() {
-            return term;
-        }
-
-        public int getTf() {
-            return tf;
-        }
-
-        public int getDf() {
-            return df;
-        }
-
-        public double getIdf() {
-            return idf;
-        }
-
-        public double getTfidf() {
-            return tfidf;
-        }
-    }
-
-    public static class TermComparator implements Comparator<TermWithValues> {
-
-        @Override
-        public int compare(TermWithValues term1, TermWithValues term2) {
-            // Compara primero los docID
-            int docIdCompare = Integer.compare(term1.getDocId(), term2.getDocId());
-            if (docIdCompare != 0) {
-                return docIdCompare;
-            }
-            // Si los docID son iguales, compara los valores de tfidf
-            int tfidfCompare = Double.compare(term2.getTfidf(), term1.getTfidf());
-            if (tfidfCompare != 0) {
-                return tfidfCompare;
-            }
-            // Si los valores de tfidf son iguales, compara los términos
-            return term1.getTerm().compareTo(term2.getTerm());
-        }
-    }
-
     public static final String CONTENT = "contents";
+    /* Términos cuyo df se guarda entre documentos por defecto. */
+    static final int DF_CACHE_TERMS = 1 << 20;
+    /* Documentos de cada trozo del rango que procesa un hilo. */
+    static final int CHUNK_DOCS = 256;
+    /* Trozos por hilo que puede haber en marcha o esperando a escribirse. */
+    static final int PENDING_CHUNKS = 4;
+    /* Entradas de heap (16 bytes cada una) entre todas las ventanas del modo postings: 128 MB. */
+    static final int POSTINGS_ENTRIES = 1 << 23;
 
     public static void main(String[] args) throws Exception {
         String usage =
                 "java org.apache.lucene.demo.IndexFiles"
-                        + " -index INDEX_PATH -docID INT1-INT2 -top NUM -outfile PATH\n\n"
-                        + "All integers must be greater than 0";
+                        + " -index INDEX_PATH[,INDEX_PATH...] -docID INT1-INT2 -top NUM -outfile PATH [-dfCacheTerms NUM] [-threads NUM] [-quiet]"
+                        + " [-mode vectors|postings] [-termStats]\n\n"
+                        + "All integers must be greater than 0\n"
+                        + "INDEX_PATH can be an index or a shard set written by IndexFiles -shards,"
+                        + " whose doc ids follow one shard after another\n"
+                        + "-dfCacheTerms: terms whose df is kept between documents (default " + DF_CACHE_TERMS + ")"
+                        + " in each thread\n"
+                        + "-quiet: only writes to the output file, not to the console\n"
+                        + "-mode vectors: reads the term vector of every document\n"
+                        + "-mode postings: reads the terms dictionary and postings of contents once per window of"
+                        + " documents, no term vectors needed (default when the index has none)\n"
+                        + "-termStats: reads df and idf from the file written by BuildTermStats, which is"
+                        + " (re)built first if the index has changed since";
         String indexPath = null;
         int docID1 = -1;
         int docID2 = -1;
         int top = -1;
         String outPath = null;
+        int dfCacheTerms = DF_CACHE_TERMS;
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        boolean echo = true;
+        String mode = null;
+        boolean useTermStats = false;
         for (int i = 0; i < args.length; i++) {
             switch (args[i]) {
                 case "-index":
@@ -102,79 +72,245 @@ public class TopTermsInDocs {
                 case "-outfile":
                     outPath =  args[++i];
                     break;
+                case "-threads":
+                    numThreads = Integer.parseInt(args[++i]);
+                    break;
+                case "-quiet":
+                    echo = false;
+                    break;
+                case "-mode":
+                    mode = args[++i];
+                    if (!mode.equals("vectors") && !mode.equals("postings")) {
+                        throw new IllegalArgumentException("unknown mode " + mode);
+                    }
+                    break;
+                case "-termStats":
+                    useTermStats = true;
+                    break;
+                case "-dfCacheTerms":
+                    dfCacheTerms = Integer.parseInt(args[++i]);
+                    break;
                 default:
                     throw new IllegalArgumentException("unknown parameter " + args[i]);
             }
         }
 
-        if (indexPath == null || docID1 <= -1 || docID2 <= -1 || top <= -1 || outPath == null) {
+        if (indexPath == null || docID1 <= -1 || docID2 <= -1 || top <= -1 || outPath == null || dfCacheTerms <= 0 || numThreads <= 0) {
             System.err.println("Usage: " + usage);
             System.exit(1);
         }
 
-        IndexReader reader = DirectoryReader.open(FSDirectory.open(Paths.get(indexPath)));
+        // Un índice, o todos los shards leídos como uno: df y numDocs son los de toda la colección
+        IndexReader reader = ShardSet.openReader(indexPath);
 
-        Terms vector = null;
-        TermsEnum termsEnum = null;
-        ArrayList<TermWithValues> termsList= new ArrayList<>();
-        BytesRef text = null;
-        int numDocs = reader.numDocs();
-
-        for (int i = docID1; i <= docID2; i++) {
-            vector = reader.getTermVector(i, CONTENT);
-
-            termsEnum = vector.iterator();
-            while ((text = termsEnum.next()) != null) {
-                String term = text.utf8ToString();
-                // Obtener tf
-                int freq = (int) termsEnum.totalTermFreq();
-
-                // Calcular idf
-                int docFreq = reader.docFreq(new Term(CONTENT, term));
-                double idf = (double) numDocs / (double) docFreq;
+        if (mode == null) {
+            mode = hasTermVectors(reader) ? "vectors" : "postings";
+        }
 
-                // Calcular raw tf * idflog10
-                double tfIdf = freq * Math.log10(idf);
+        // Estadísticas precalculadas: se mapean en memoria en vez de buscarse en el diccionario
+        TermStatsSidecar stats = useTermStats
+                ? TermStatsSidecar.open(reader, CONTENT, TermStatsSidecar.defaultPath(indexPath, CONTENT))
+                : null;
 
-                TermWithValues termWithValues = new TermWithValues(i, term, freq, docFreq, idf, tfIdf);
-                termsList.add(termWithValues);
+        try (Writer writer = new BufferedWriter(new FileWriter(outPath), 1 << 16)) {
+            if (mode.equals("postings")) {
+                writeFromPostings(reader, docID1, docID2, top, numThreads, stats, writer, echo);
+            } else {
+                writeFromVectors(reader, docID1, docID2, top, numThreads, dfCacheTerms, stats, writer, echo);
             }
+        } finally {
+            IOUtils.close(stats, reader);
         }
+    }
 
-        reader.close();
-
-        termsList.sort(new TermComparator());
-
-
-        // Crea un objeto PrintWriter para escribir en el archivo de salida
-        PrintWriter writer = null;
-        writer = new PrintWriter(new FileWriter(outPath));
+    /* Si todas las hojas con documentos guardan los vectores de términos de contents. */
+    static boolean hasTermVectors(IndexReader reader) {
+        for (LeafReaderContext ctx : reader.leaves()) {
+            FieldInfo info = ctx.reader().getFieldInfos().fieldInfo(CONTENT);
+            if (ctx.reader().maxDoc() > 0 && (info == null || !info.hasVectors())) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        for (int i = docID1; i <= docID2; i++) {
-            // Filtra la lista de términos para obtener solo los del documento actual
-            int finalI = i;
-            List<TermWithValues> documentTerms = termsList.stream()
-                    .filter(term -> term.getDocId() == finalI).sorted(new TermComparator()).collect(Collectors.toList());
+    /**
+     * Modo vectors: trozos del rango en paralelo, cada uno leyendo el vector de términos de sus
+     * documentos; la salida se escribe en orden de docID a medida que terminan.
+     */
+    static void writeFromVectors(IndexReader reader, int docID1, int docID2, int top, int numThreads,
+                                 int dfCacheTerms, TermStatsSidecar stats, Writer writer, boolean echo)
+            throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(numThreads);
+        ThreadLocal<ChunkWorker> workers = ThreadLocal.withInitial(() -> new ChunkWorker(reader, top, dfCacheTerms, stats));
+        try {
+            Deque<ForkJoinTask<String>> pending = new ArrayDeque<>();
+            long next = docID1;
+            while (next <= docID2 || !pending.isEmpty()) {
+                // Como mucho PENDING_CHUNKS trozos por hilo sin escribir, para que la memoria no crezca con el rango
+                while (next <= docID2 && pending.size() < PENDING_CHUNKS * numThreads) {
+                    int from = (int) next;
+                    int to = (int) Math.min(docID2, next + CHUNK_DOCS - 1);
+                    pending.add(pool.submit(() -> workers.get().chunk(from, to)));
+                    next = to + 1L;
+                }
+                String text = pending.poll().get();
+                writer.write(text);
+                if (echo) {
+                    System.out.print(text);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
 
-            // Ordena los términos por tf x idflog10 utilizando el comparador
+    /**
+     * Modo postings: ventanas del rango en paralelo, cada una con una pasada por el diccionario y
+     * las postings de contents de las hojas que toca (ver {@link PostingsTopTerms}). Hay un
+     * PostingsTopTerms por ventana en marcha, y uno más para la que se está escribiendo; se
+     * reutilizan de una ventana a otra. Entre todos no pasan de {@link #POSTINGS_ENTRIES} entradas:
+     * con un top grande las ventanas tienen menos documentos y hay menos en marcha.
+     */
+    static void writeFromPostings(IndexReader reader, int docID1, int docID2, int top, int numThreads,
+                                  TermStatsSidecar stats, Writer writer, boolean echo) throws Exception {
+        if (top > POSTINGS_ENTRIES) {
+            throw new IllegalArgumentException("-top " + top + " does not fit in the postings mode, at most "
+                    + POSTINGS_ENTRIES + " terms per document");
+        }
+        int perDoc = Math.max(1, top);
+        // Una ventana por hilo más la que se escribe, mientras quepa un documento en cada una
+        int windows = Math.min(numThreads + 1, POSTINGS_ENTRIES / perDoc);
+        int windowDocs = POSTINGS_ENTRIES / windows / perDoc;
+        Deque<PostingsTopTerms> free = new ArrayDeque<>();
+        for (int i = 0; i < windows; i++) {
+            free.add(new PostingsTopTerms(reader, CONTENT, top, stats == null ? null : stats.newLookup()));
+        }
+        ForkJoinPool pool = new ForkJoinPool(numThreads);
+        StringBuilder text = new StringBuilder();
+        Formatter formatter = new Formatter(text);
+        try {
+            Deque<ForkJoinTask<PostingsTopTerms>> pending = new ArrayDeque<>();
+            long next = docID1;
+            while (next <= docID2 || !pending.isEmpty()) {
+                while (next <= docID2 && !free.isEmpty()) {
+                    PostingsTopTerms window = free.poll();
+                    int from = (int) next;
+                    int to = (int) Math.min(docID2, next + windowDocs - 1);
+                    pending.add(pool.submit(() -> {
+                        window.collect(from, to);
+                        return window;
+                    }));
+                    next = to + 1L;
+                }
+                PostingsTopTerms window = pending.poll().get();
+                for (int i = window.from(); i <= window.to(); i++) {
+                    text.setLength(0);
+                    text.append("Document ID: ").append(i).append(System.lineSeparator());
+                    int n = window.sort(i);
+                    for (int j = 0; j < n; j++) {
+                        int entry = window.entry(i, j);
+                        appendTerm(formatter, window.term(entry), window.tf(entry), window.df(entry),
+                                window.idf(entry), window.score(entry));
+                    }
+                    text.append(System.lineSeparator());
+                    writer.append(text);
+                    if (echo) {
+                        System.out.append(text);
+                    }
+                }
+                free.add(window);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
 
-            System.out.println("Document ID: " + i);
-            writer.println("Document ID: " + i);
+    /* Una línea de la salida, igual en los dos modos. */
+    static void appendTerm(Formatter formatter, BytesRef term, int tf, int df, double idf, double tfIdf) {
+        formatter.format("%14s\t\ttf: %3d\t\tdf: %3d\t\tidf: %3.6f\t\ttf * idflog10: %10.5f\n",
+                term.utf8ToString(), tf, df, idf, tfIdf);
+    }
 
-            // Imprime y escribe en el archivo los top n términos y sus valores
-            for (int j = 0; j < top && j < documentTerms.size(); j++) {
-                TermWithValues term = documentTerms.get(j);
-                System.out.printf("%14s\t\ttf: %3d\t\tdf: %3d\t\tidf: %3.6f\t\ttf * idflog10: %10.5f\n",
-                        term.getTerm(), term.getTf(), term.getDf(), term.getIdf(), term.getTfidf());
-                writer.printf("%14s\t\ttf: %3d\t\tdf: %3d\t\tidf: %3.6f\t\ttf * idflog10: %10.5f\n",
-                        term.getTerm(), term.getTf(), term.getDf(), term.getIdf(), term.getTfidf());
+    /**
+     * Estado de un hilo: su heap, su caché de df y una copia del lector de vectores de términos de
+     * cada hoja, que no se comparten entre hilos.
+     */
+    static final class ChunkWorker {
+        private final List<LeafReaderContext> leaves;
+        private final TermVectorsReader[] vectorReaders;
+        private final DocFreqCache docFreqs;
+        private final TopTermsHeap heap;
+        private final int[] order;
+        private final StringBuilder text = new StringBuilder();
+        private final Formatter formatter = new Formatter(text);
+
+        ChunkWorker(IndexReader reader, int top, int dfCacheTerms, TermStatsSidecar stats) {
+            this.leaves = reader.leaves();
+            this.vectorReaders = new TermVectorsReader[leaves.size()];
+            // df de toda la colección con un único TermsEnum reutilizado, y los términos comunes guardados
+            try {
+                this.docFreqs = new DocFreqCache(reader, CONTENT, dfCacheTerms, stats == null ? null : stats.newLookup());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
-            System.out.println();
-            writer.println();
+            // Sólo los top términos de cada documento: nada crece con el número de términos ni de documentos
+            this.heap = new TopTermsHeap(top);
+            this.order = new int[top];
         }
 
-        writer.close();
-
+        /* Devuelve la salida de los documentos from a to, ambos incluidos. */
+        String chunk(int from, int to) throws IOException {
+            text.setLength(0);
+            for (int i = from; i <= to; i++) {
+                heap.clear();
+                Terms vector = termVector(i);
+                if (vector != null) {
+                    TermsEnum termsEnum = vector.iterator();
+                    BytesRef term;
+                    while ((term = termsEnum.next()) != null) {
+                        // Obtener tf
+                        int freq = (int) termsEnum.totalTermFreq();
+
+                        // Calcular idf
+                        int id = docFreqs.lookup(term);
+
+                        // Calcular raw tf * idflog10
+                        double tfIdf = freq * docFreqs.logIdf(id);
+
+                        heap.offer(term, freq, docFreqs.docFreq(id), docFreqs.idf(id), tfIdf);
+                    }
+                }
+
+                text.append("Document ID: ").append(i).append(System.lineSeparator());
+
+                // Los top n términos, ordenados por tf x idflog10 y por término
+                int n = heap.drain(order);
+                for (int j = 0; j < n; j++) {
+                    int slot = order[j];
+                    appendTerm(formatter, heap.term(slot), heap.tf(slot), heap.df(slot), heap.idf(slot), heap.score(slot));
+                }
+                text.append(System.lineSeparator());
+            }
+            return text.toString();
+        }
 
+        private Terms termVector(int doc) throws IOException {
+            int ord = ReaderUtil.subIndex(doc, leaves);
+            LeafReaderContext ctx = leaves.get(ord);
+            if (!(ctx.reader() instanceof CodecReader)) {
+                return ctx.reader().getTermVector(doc - ctx.docBase, CONTENT);
+            }
+            if (vectorReaders[ord] == null) {
+                TermVectorsReader vectors = ((CodecReader) ctx.reader()).getTermVectorsReader();
+                if (vectors == null) {
+                    // Índice sin vectores de términos
+                    return null;
+                }
+                vectorReaders[ord] = vectors.clone();
+            }
+            Fields fields = vectorReaders[ord].get(doc - ctx.docBase);
+            return fields == null ? null : fields.terms(CONTENT);
+        }
     }
 }
@@ -0,0 +1,332 @@
+package es.udc.fi.ri.mrisearcher;
+
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LiveIndexWriterConfig;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.TieredMergePolicy;
+
+/**
+ * Tunes a running IndexWriter from the throughput measured by {@link IndexMetrics}.
+ *
+ * <p>During the first seconds of a run the tuner samples docs/s, heap headroom, flushes and merge
+ * activity every {@link #SAMPLE_SECONDS} seconds and adjusts, within {@link Bounds}:
+ *
+ * <ul>
+ *   <li>the RAM buffer, grown while segments are flushed often and the heap has room, and shrunk
+ *       when the heap runs short,
+ *   <li>the number of active workers, by hill climbing on docs/s,
+ *   <li>the merge threads, added while every merge thread is busy and there are spare cores,
+ *   <li>the segments per tier of the merge policy, raised while merging takes most of the time of
+ *       the merge threads, so fewer merges run during the bulk load.
+ * </ul>
+ *
+ * <p>Every change is logged, and the settings it ends with are printed when the tuning period is
+ * over. All of them are live settings of IndexWriter, so nothing has to be reopened.
+ */
+final class AutoTuner {
+  static final int SAMPLE_SECONDS = 2;
+
+  private final IndexWriter writer;
+  private final ConcurrentMergeScheduler mergeScheduler;
+  private final IndexMetrics metrics;
+  private final Bounds bounds;
+  private final Limiter workers;
+  private final ScheduledExecutorService sampler;
+  private final long endNanos;
+
+  private long lastNanos = System.nanoTime();
+  private long lastDocs;
+  private long lastFlushes;
+  private long lastMergeNanos;
+  /* Hill climbing state on the number of workers. */
+  private double bestRate;
+  private int bestWorkers;
+  private int direction = 1;
+  private int reversals;
+  private boolean done;
+
+  /**
+   * @param writer Writer to tune
+   * @param mergeScheduler Merge scheduler of the writer
+   * @param metrics Metrics of the run
+   * @param bounds Limits of every setting
+   * @param workers Limiter of the workers feeding the writer, or null if their number is fixed
+   * @param seconds Length of the tuning period
+   */
+  AutoTuner(IndexWriter writer, ConcurrentMergeScheduler mergeScheduler, IndexMetrics metrics,
+          Bounds bounds, Limiter workers, int seconds) {
+    this.writer = writer;
+    this.mergeScheduler = mergeScheduler;
+    this.metrics = metrics;
+    this.bounds = bounds;
+    this.workers = workers;
+    this.endNanos = lastNanos + TimeUnit.SECONDS.toNanos(seconds);
+    LiveIndexWriterConfig config = writer.getConfig();
+    config.setRAMBufferSizeMB(clamp(config.getRAMBufferSizeMB(), bounds.minRamMB, bounds.maxRamMB));
+    if (workers != null) {
+      workers.setLimit(clamp(workers.limit(), bounds.minWorkers, bounds.maxWorkers));
+      bestWorkers = workers.limit();
+    }
+    int mergeThreads = clamp(mergeScheduler.getMaxThreadCount(), bounds.minMergeThreads,
+            bounds.maxMergeThreads);
+    mergeScheduler.setMaxMergesAndThreads(mergeThreads + 5, mergeThreads);
+    TieredMergePolicy tmp = tieredMergePolicy();
+    if (tmp != null) {
+      tmp.setSegmentsPerTier(
+              clamp(tmp.getSegmentsPerTier(), bounds.minSegmentsPerTier, bounds.maxSegmentsPerTier));
+    }
+    System.out.println("[autotune] starting with " + settings());
+    this.sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "autotune");
+      thread.setDaemon(true);
+      return thread;
+    });
+    sampler.scheduleAtFixedRate(this::sample, SAMPLE_SECONDS, SAMPLE_SECONDS, TimeUnit.SECONDS);
+  }
+
+  /** Ends the tuning period now if it is not over yet. */
+  void stop() {
+    sampler.shutdownNow();
+    finish();
+  }
+
+  private synchronized void finish() {
+    if (!done) {
+      done = true;
+      System.out.println("[autotune] settled on " + settings());
+    }
+  }
+
+  private synchronized void sample() {
+    if (done) {
+      return;
+    }
+    long now = System.nanoTime();
+    double seconds = (now - lastNanos) / 1e9;
+    long docs = metrics.docs();
+    long flushes = metrics.flushes();
+    long mergeNanos = metrics.mergeNanos();
+    double rate = (docs - lastDocs) / seconds;
+    long windowFlushes = flushes - lastFlushes;
+    double mergeShare = (mergeNanos - lastMergeNanos) / 1e9 / seconds
+            / mergeScheduler.getMaxThreadCount();
+    lastNanos = now;
+    lastDocs = docs;
+    lastFlushes = flushes;
+    lastMergeNanos = mergeNanos;
+
+    Runtime runtime = Runtime.getRuntime();
+    double headroom =
+        1 - (double) (runtime.totalMemory() - runtime.freeMemory()) / runtime.maxMemory();
+
+    tuneRamBuffer(headroom, windowFlushes);
+    if (workers != null) {
+      tuneWorkers(rate, headroom);
+    }
+    tuneMerges(mergeShare);
+    if (now >= endNanos) {
+      sampler.shutdown();
+      finish();
+    }
+  }
+
+  private void tuneRamBuffer(double headroom, long windowFlushes) {
+    LiveIndexWriterConfig config = writer.getConfig();
+    double ramMB = config.getRAMBufferSizeMB();
+    double target = ramMB;
+    if (headroom < 0.2) {
+      target = Math.max(bounds.minRamMB, ramMB / 2);
+    } else if (headroom > 0.5 && windowFlushes > 1) {
+      // Every worker holds a segment in the buffer: more room means fewer, bigger segments
+      target = Math.min(bounds.maxRamMB, ramMB * 2);
+    }
+    if (target != ramMB) {
+      config.setRAMBufferSizeMB(target);
+      log("ramBufferMB %.0f -> %.0f (heap headroom %.0f%%, %d flushes)", ramMB, target,
+              headroom * 100, windowFlushes);
+    }
+  }
+
+  private void tuneWorkers(double rate, double headroom) {
+    if (reversals >= 2) {
+      return;
+    }
+    int current = workers.limit();
+    if (rate > bestRate * 1.05) {
+      bestRate = rate;
+      bestWorkers = current;
+    } else if (rate < bestRate * 0.95 || current == bounds.minWorkers
+            || current == bounds.maxWorkers) {
+      // Worse than the best setting seen (or at a bound): go back there and try the other way
+      direction = -direction;
+      reversals++;
+      if (current != bestWorkers) {
+        workers.setLimit(bestWorkers);
+        log("workers %d -> %d (%.0f docs/s, best %.0f)", current, bestWorkers, rate, bestRate);
+      }
+      return;
+    }
+    if (direction > 0 && headroom < 0.2) {
+      return;
+    }
+    int next = clamp(bestWorkers + direction, bounds.minWorkers, bounds.maxWorkers);
+    if (next != current) {
+      workers.setLimit(next);
+      log("workers %d -> %d (%.0f docs/s)", current, next, rate);
+    }
+  }
+
+  private void tuneMerges(double mergeShare) {
+    int threads = mergeScheduler.getMaxThreadCount();
+    int busyCores = threads + (workers != null ? workers.limit() : 1);
+    if (mergeScheduler.mergeThreadCount() >= threads && threads < bounds.maxMergeThreads
+            && busyCores < Runtime.getRuntime().availableProcessors()) {
+      mergeScheduler.setMaxMergesAndThreads(threads + 6, threads + 1);
+      log("mergeThreads %d -> %d (all busy)", threads, threads + 1);
+    }
+    TieredMergePolicy tmp = tieredMergePolicy();
+    if (tmp != null && mergeShare > 0.5) {
+      double segmentsPerTier = tmp.getSegmentsPerTier();
+      double next = Math.min(bounds.maxSegmentsPerTier, Math.ceil(segmentsPerTier * 1.5));
+      if (next != segmentsPerTier) {
+        tmp.setSegmentsPerTier(next);
+        log("segmentsPerTier %.0f -> %.0f (merging %.0f%% of the time)", segmentsPerTier, next,
+                mergeShare * 100);
+      }
+    }
+  }
+
+  private TieredMergePolicy tieredMergePolicy() {
+    MergePolicy policy = writer.getConfig().getMergePolicy();
+    return policy instanceof TieredMergePolicy ? (TieredMergePolicy) policy : null;
+  }
+
+  private String settings() {
+    TieredMergePolicy tmp = tieredMergePolicy();
+    return String.format(Locale.ROOT, "ramBufferMB=%.0f, workers=%s, mergeThreads=%d,"
+                    + " segmentsPerTier=%s",
+            writer.getConfig().getRAMBufferSizeMB(),
+            workers != null ? Integer.toString(workers.limit()) : "1",
+            mergeScheduler.getMaxThreadCount(),
+            tmp != null ? String.format(Locale.ROOT, "%.0f", tmp.getSegmentsPerTier()) : "n/a");
+  }
+
+  private static void log(String format, Object... args) {
+    System.out.println("[autotune] " + String.format(Locale.ROOT, format, args));
+  }
+
+  private static int clamp(int value, int min, int max) {
+    return Math.max(min, Math.min(max, value));
+  }
+
+  private static double clamp(double value, double min, double max) {
+    return Math.max(min, Math.min(max, value));
+  }
+
+  /**
+   * Limits of the settings the tuner may choose, parsed from a comma separated list of
+   * name=min:max pairs, e.g. "ramMB=32:512,workers=2:8". Settings not listed keep their defaults,
+   * which depend on the heap size and number of cores of the machine.
+   */
+  static final class Bounds {
+    double minRamMB = 16;
+    double maxRamMB;
+    int minWorkers = 1;
+    int maxWorkers;
+    int minMergeThreads = 1;
+    int maxMergeThreads;
+    double minSegmentsPerTier = 5;
+    double maxSegmentsPerTier = 50;
+
+    Bounds() {
+      int cores = Runtime.getRuntime().availableProcessors();
+      maxRamMB = Math.max(minRamMB, Runtime.getRuntime().maxMemory() / (4.0 * 1024 * 1024));
+      maxWorkers = 2 * cores;
+      maxMergeThreads = Math.max(1, cores / 2);
+    }
+
+    static Bounds parse(String spec) {
+      Bounds bounds = new Bounds();
+      if (spec == null || spec.isEmpty()) {
+        return bounds;
+      }
+      for (String pair : spec.split(",")) {
+        String[] nameRange = pair.split("=");
+        String[] range = nameRange.length == 2 ? nameRange[1].split(":") : new String[0];
+        if (range.length != 2) {
+          throw new IllegalArgumentException("bad auto-tune bound " + pair + ", expected name=min:max");
+        }
+        double min = Double.parseDouble(range[0]);
+        double max = Double.parseDouble(range[1]);
+        if (min > max || min <= 0) {
+          throw new IllegalArgumentException("bad auto-tune bound " + pair);
+        }
+        switch (nameRange[0].trim()) {
+          case "ramMB":
+            bounds.minRamMB = min;
+            bounds.maxRamMB = max;
+            break;
+          case "workers":
+            bounds.minWorkers = threads(pair, range[0]);
+            bounds.maxWorkers = threads(pair, range[1]);
+            break;
+          case "mergeThreads":
+            bounds.minMergeThreads = threads(pair, range[0]);
+            bounds.maxMergeThreads = threads(pair, range[1]);
+            break;
+          case "segmentsPerTier":
+            bounds.minSegmentsPerTier = Math.max(2, min);
+            bounds.maxSegmentsPerTier = Math.max(2, max);
+            break;
+          default:
+            throw new IllegalArgumentException("unknown auto-tune bound " + nameRange[0]);
+        }
+      }
+      return bounds;
+    }
+
+    /* A bound on a number of threads: a whole number, at least 1, or no thread would ever run. */
+    private static int threads(String pair, String value) {
+      int threads;
+      try {
+        threads = Integer.parseInt(value.trim());
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("bad auto-tune bound " + pair + ", expected whole numbers");
+      }
+      if (threads < 1) {
+        throw new IllegalArgumentException("bad auto-tune bound " + pair + ", at least 1 thread is needed");
+      }
+      return threads;
+    }
+  }
+
+  /** Caps how many workers index at the same time, a cap that can be moved while they run. */
+  static final class Limiter extends Semaphore {
+    private int limit;
+
+    Limiter(int limit) {
+      super(limit);
+      this.limit = limit;
+    }
+
+    synchronized int limit() {
+      return limit;
+    }
+
+    synchronized void setLimit(int newLimit) {
+      if (newLimit > limit) {
+        release(newLimit - limit);
+      } else if (newLimit < limit) {
+        // Workers already running finish their document; the next ones wait
+        reducePermits(limit - newLimit);
+      }
+      limit = newLimit;
+    }
+  }
+}
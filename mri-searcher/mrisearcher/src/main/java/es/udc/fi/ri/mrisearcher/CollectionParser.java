@@ -0,0 +1,471 @@
+package es.udc.fi.ri.mrisearcher;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Streaming parser of one file of a test collection. It reads the file a line at a time and hands
+ * every document to a {@link Sink} as soon as it is complete, so memory only grows with the
+ * largest document, whatever the size of the file.
+ *
+ * <p>The formats are picked by name with {@link #forFormat}; a new format only needs a new
+ * implementation and a case there. Files are gzip-decompressed when they start with the gzip magic
+ * bytes, whatever their name.
+ */
+interface CollectionParser {
+  /** Formats known to {@link #forFormat}. */
+  List<String> FORMATS = Arrays.asList("npl", "trec", "linedoc", "jsonl");
+
+  /** Receives the documents of a file, in file order. */
+  interface Sink {
+    /**
+     * @param id Identifier of the document, indexed as DocIDNPL
+     * @param contents Text of the document
+     * @param ordinal Position of the document in its file, from 0
+     * @param chars Characters of the file the document took up, line breaks counted as one
+     * @param startNanos When the parser started reading the document
+     */
+    void document(String id, String contents, long ordinal, long chars, long startNanos)
+        throws IOException;
+  }
+
+  /** Parses the documents read from in, which the caller closes. */
+  void parse(BufferedReader in, Sink sink) throws IOException;
+
+  static CollectionParser forFormat(String format) {
+    switch (format) {
+      case "npl":
+        return new Npl();
+      case "trec":
+        return new Trec();
+      case "linedoc":
+        return new LineDoc();
+      case "jsonl":
+        return new Jsonl();
+      default:
+        throw new IllegalArgumentException("Unknown format: " + format + ", expected one of " + FORMATS);
+    }
+  }
+
+  /** Tells whether file starts with the gzip magic bytes. */
+  static boolean isGzipped(Path file) throws IOException {
+    try (InputStream in = Files.newInputStream(file)) {
+      return in.read() == 0x1f && in.read() == 0x8b;
+    }
+  }
+
+  /** Opens file as UTF-8 text, decompressing it if it is gzipped. */
+  static BufferedReader open(Path file) throws IOException {
+    InputStream in = new BufferedInputStream(Files.newInputStream(file), 1 << 16);
+    try {
+      in.mark(2);
+      int b0 = in.read();
+      int b1 = in.read();
+      in.reset();
+      if (b0 == 0x1f && b1 == 0x8b) {
+        in = new GZIPInputStream(in, 1 << 16);
+      }
+      return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+    } catch (IOException e) {
+      in.close();
+      throw e;
+    }
+  }
+
+  /** The NPL layout: an id line, the lines of the text and a line with only "/". */
+  final class Npl implements CollectionParser {
+    @Override
+    public void parse(BufferedReader in, Sink sink) throws IOException {
+      String id = null;
+      StringBuilder contents = new StringBuilder();
+      long ordinal = 0;
+      long chars = 0;
+      long startNanos = 0;
+      for (String line = in.readLine(); line != null; line = in.readLine()) {
+        chars += line.length() + 1;
+        if (id == null) {
+          id = line;
+          startNanos = System.nanoTime();
+        } else if (line.trim().equals("/")) {
+          sink.document(id, contents.toString().trim(), ordinal++, chars, startNanos);
+          chars = 0;
+          id = null;
+          contents.setLength(0);
+        } else {
+          contents.append(line).append(System.lineSeparator());
+        }
+      }
+    }
+  }
+
+  /**
+   * TREC SGML: documents between &lt;DOC&gt; and &lt;/DOC&gt; lines, with their id in
+   * &lt;DOCNO&gt;. The contents are the rest of the document without its markup; the
+   * &lt;DOCHDR&gt; of web collections is left out.
+   */
+  final class Trec implements CollectionParser {
+    @Override
+    public void parse(BufferedReader in, Sink sink) throws IOException {
+      boolean inDoc = false;
+      boolean inHeader = false;
+      String id = null;
+      StringBuilder contents = new StringBuilder();
+      long ordinal = 0;
+      long chars = 0;
+      long startNanos = 0;
+      for (String line = in.readLine(); line != null; line = in.readLine()) {
+        chars += line.length() + 1;
+        String tag = line.trim().toUpperCase(Locale.ROOT);
+        if (!inDoc) {
+          if (tag.equals("<DOC>")) {
+            inDoc = true;
+            startNanos = System.nanoTime();
+          } else {
+            // Lo que haya entre documentos no es de ninguno
+            chars = 0;
+          }
+        } else if (tag.equals("</DOC>")) {
+          if (id == null) {
+            throw new IOException("TREC document " + ordinal + " has no <DOCNO>");
+          }
+          sink.document(id, contents.toString().trim(), ordinal++, chars, startNanos);
+          chars = 0;
+          inDoc = false;
+          inHeader = false;
+          id = null;
+          contents.setLength(0);
+        } else if (inHeader) {
+          inHeader = !tag.startsWith("</DOCHDR>");
+        } else if (tag.startsWith("<DOCHDR>")) {
+          inHeader = !tag.endsWith("</DOCHDR>");
+        } else if (tag.startsWith("<DOCNO>")) {
+          id = stripTags(line).trim();
+        } else {
+          String text = stripTags(line);
+          if (!text.trim().isEmpty()) {
+            contents.append(text).append(System.lineSeparator());
+          }
+        }
+      }
+      if (inDoc) {
+        throw new IOException("TREC document " + ordinal + " has no </DOC>");
+      }
+    }
+
+    private static String stripTags(String line) {
+      if (line.indexOf('<') == -1) {
+        return line;
+      }
+      StringBuilder text = new StringBuilder(line.length());
+      boolean inTag = false;
+      for (int i = 0; i < line.length(); i++) {
+        char c = line.charAt(i);
+        if (c == '<') {
+          inTag = true;
+        } else if (c == '>' && inTag) {
+          inTag = false;
+          text.append(' ');
+        } else if (!inTag) {
+          text.append(c);
+        }
+      }
+      return text.toString();
+    }
+  }
+
+  /**
+   * One document per line, with tab separated columns. By default the first column is the id and
+   * the rest of the line the contents. A first line like the header of Lucene's benchmark line
+   * files, "FIELDS_HEADER_INDICATOR###" followed by column names, picks the id from the docname
+   * (or docid, or id) column and the contents from doctitle and body (or contents, or text).
+   * Without an id column, as in the default "doctitle docdate body" header of WriteLineDocTask,
+   * the id is the position of the document in its file, from 0.
+   */
+  final class LineDoc implements CollectionParser {
+    static final String HEADER = "FIELDS_HEADER_INDICATOR###";
+
+    @Override
+    public void parse(BufferedReader in, Sink sink) throws IOException {
+      int idColumn = 0;
+      int titleColumn = -1;
+      int bodyColumn = -1;
+      long ordinal = 0;
+      String line = in.readLine();
+      if (line != null && line.startsWith(HEADER)) {
+        // El indicador no es una columna de los documentos
+        List<String> columns = Arrays.asList(line.substring(HEADER.length()).trim().split("\t", -1));
+        idColumn = firstOf(columns, "docname", "docid", "id");
+        titleColumn = columns.indexOf("doctitle");
+        bodyColumn = firstOf(columns, "body", "contents", "text");
+        if (bodyColumn == -1) {
+          throw new IOException("line doc header without body column: " + line);
+        }
+        line = in.readLine();
+      }
+      for (; line != null; line = in.readLine()) {
+        long startNanos = System.nanoTime();
+        if (line.isEmpty()) {
+          continue;
+        }
+        String id;
+        String contents;
+        if (bodyColumn == -1) {
+          int tab = line.indexOf('\t');
+          id = tab == -1 ? line : line.substring(0, tab);
+          contents = tab == -1 ? "" : line.substring(tab + 1);
+        } else {
+          String[] values = line.split("\t", -1);
+          id = idColumn == -1 ? Long.toString(ordinal) : column(values, idColumn);
+          String title = column(values, titleColumn);
+          String body = column(values, bodyColumn);
+          contents = title.isEmpty() ? body : title + System.lineSeparator() + body;
+        }
+        sink.document(id.trim(), contents.trim(), ordinal++, line.length() + 1, startNanos);
+      }
+    }
+
+    private static int firstOf(List<String> columns, String... names) {
+      for (String name : names) {
+        int column = columns.indexOf(name);
+        if (column != -1) {
+          return column;
+        }
+      }
+      return -1;
+    }
+
+    private static String column(String[] values, int column) {
+      return column >= 0 && column < values.length ? values[column] : "";
+    }
+  }
+
+  /**
+   * One JSON object per line, as in the JSON collections of Anserini and Pyserini: the id is the
+   * id (or docid, or _id) member and the contents the contents (or text, or body) member. Other
+   * members are skipped, and only string members at the top level of the object are read.
+   */
+  final class Jsonl implements CollectionParser {
+    private static final List<String> ID_KEYS = Arrays.asList("id", "docid", "_id");
+    private static final List<String> CONTENTS_KEYS = Arrays.asList("contents", "text", "body");
+
+    @Override
+    public void parse(BufferedReader in, Sink sink) throws IOException {
+      long ordinal = 0;
+      long lineNumber = 0;
+      for (String line = in.readLine(); line != null; line = in.readLine()) {
+        long startNanos = System.nanoTime();
+        lineNumber++;
+        if (line.trim().isEmpty()) {
+          continue;
+        }
+        String[] values = new String[ID_KEYS.size() + CONTENTS_KEYS.size()];
+        try {
+          new ObjectReader(line).read(values);
+        } catch (IllegalArgumentException e) {
+          throw new IOException("line " + lineNumber + ": " + e.getMessage());
+        }
+        String id = first(values, 0, ID_KEYS.size());
+        if (id == null) {
+          throw new IOException("line " + lineNumber + " has no id, expected one of " + ID_KEYS);
+        }
+        String contents = first(values, ID_KEYS.size(), values.length);
+        sink.document(id, contents == null ? "" : contents.trim(), ordinal++, line.length() + 1,
+            startNanos);
+      }
+    }
+
+    private static String first(String[] values, int from, int to) {
+      for (int i = from; i < to; i++) {
+        if (values[i] != null) {
+          return values[i];
+        }
+      }
+      return null;
+    }
+
+    /* Recorre un objeto JSON guardando los miembros string de primer nivel que interesan. */
+    private static final class ObjectReader {
+      private final String json;
+      private int pos;
+
+      ObjectReader(String json) {
+        this.json = json;
+      }
+
+      void read(String[] values) {
+        expect('{');
+        if (peek() == '}') {
+          return;
+        }
+        while (true) {
+          expect('"');
+          String key = string();
+          expect(':');
+          int index = ID_KEYS.indexOf(key);
+          if (index == -1 && CONTENTS_KEYS.contains(key)) {
+            index = ID_KEYS.size() + CONTENTS_KEYS.indexOf(key);
+          }
+          if (index != -1 && peek() == '"') {
+            pos++;
+            values[index] = string();
+          } else if (index != -1 && json.startsWith("null", pos)) {
+            pos += 4;
+          } else if (index != -1 && ID_KEYS.contains(key) && isNumberStart(peek())) {
+            // Ids numéricos, tal como están escritos
+            int start = pos;
+            skipValue();
+            values[index] = json.substring(start, pos);
+          } else {
+            skipValue();
+          }
+          char c = next();
+          if (c == '}') {
+            return;
+          }
+          if (c != ',') {
+            throw error("expected ',' or '}'");
+          }
+        }
+      }
+
+      /* Lee un string cuya comilla de apertura ya se ha consumido. */
+      private String string() {
+        StringBuilder text = null;
+        int start = pos;
+        while (true) {
+          if (pos >= json.length()) {
+            throw error("unterminated string");
+          }
+          char c = json.charAt(pos++);
+          if (c == '"') {
+            return text == null ? json.substring(start, pos - 1) : text.toString();
+          }
+          if (c != '\\') {
+            if (text != null) {
+              text.append(c);
+            }
+            continue;
+          }
+          if (text == null) {
+            text = new StringBuilder(json.length() - start).append(json, start, pos - 1);
+          }
+          if (pos >= json.length()) {
+            throw error("unterminated string");
+          }
+          char e = json.charAt(pos++);
+          switch (e) {
+            case 'b':
+              text.append('\b');
+              break;
+            case 'f':
+              text.append('\f');
+              break;
+            case 'n':
+              text.append('\n');
+              break;
+            case 'r':
+              text.append('\r');
+              break;
+            case 't':
+              text.append('\t');
+              break;
+            case 'u':
+              if (pos + 4 > json.length()) {
+                throw error("bad unicode escape");
+              }
+              try {
+                text.append((char) Integer.parseInt(json.substring(pos, pos + 4), 16));
+              } catch (NumberFormatException ex) {
+                throw error("bad unicode escape");
+              }
+              pos += 4;
+              break;
+            default:
+              text.append(e);
+          }
+        }
+      }
+
+      private void skipValue() {
+        char c = peek();
+        if (c == '"') {
+          pos++;
+          skipString();
+        } else if (c == '{' || c == '[') {
+          int depth = 0;
+          do {
+            c = next();
+            if (c == '"') {
+              skipString();
+            } else if (c == '{' || c == '[') {
+              depth++;
+            } else if (c == '}' || c == ']') {
+              depth--;
+            }
+          } while (depth > 0);
+        } else {
+          // Números, true, false y null
+          while (pos < json.length() && ",}] \t".indexOf(json.charAt(pos)) == -1) {
+            pos++;
+          }
+        }
+      }
+
+      private void skipString() {
+        while (true) {
+          if (pos >= json.length()) {
+            throw error("unterminated string");
+          }
+          char c = json.charAt(pos++);
+          if (c == '"') {
+            return;
+          }
+          if (c == '\\') {
+            pos++;
+          }
+        }
+      }
+
+      private static boolean isNumberStart(char c) {
+        return c == '-' || (c >= '0' && c <= '9');
+      }
+
+      private void expect(char c) {
+        if (next() != c) {
+          throw error("expected '" + c + "'");
+        }
+      }
+
+      /* Siguiente carácter que no sea blanco, sin consumirlo. */
+      private char peek() {
+        while (pos < json.length() && Character.isWhitespace(json.charAt(pos))) {
+          pos++;
+        }
+        if (pos >= json.length()) {
+          throw error("unexpected end of line");
+        }
+        return json.charAt(pos);
+      }
+
+      private char next() {
+        char c = peek();
+        pos++;
+        return c;
+      }
+
+      private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at column " + (pos + 1));
+      }
+    }
+  }
+}
@@ -20,14 +20,24 @@ package es.udc.fi.ri.mrisearcher;
 
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.CharArraySet;
@@ -38,6 +48,7 @@ import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.demo.knn.DemoEmbeddings;
 import org.apache.lucene.demo.knn.KnnVectorDict;
 import org.apache.lucene.document.*;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
@@ -45,6 +56,13 @@ import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.VectorSimilarityFunction;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.similarities.LMDirichletSimilarity;
 import org.apache.lucene.search.similarities.LMJelinekMercerSimilarity;
 import org.apache.lucene.search.similarities.Similarity;
@@ -60,12 +78,32 @@ import org.apache.lucene.util.IOUtils;
  */
 public class IndexNPL implements AutoCloseable {
   static final String KNN_DICT = "knn-dict";
+  /* Point field tagging every document with the run that last indexed it. */
+  static final String RUN_FIELD = "IndexRun";
+  /* Doc values field with the offset of every document in its file, for -preserveOrder. */
+  static final String ORDER_FIELD = "NPLOrder";
+  /* Bytes of the collection parsed by a task; each chunk ends at a "/" line, so it may run longer. */
+  static final long CHUNK_BYTES = 8 << 20;
+  /* Bits of ORDER_FIELD for the position of a document in its file, under the number of the file. */
+  static final int ORDER_FILE_SHIFT = 40;
 
   // Calculates embedding vectors for KnnVector search
   private final DemoEmbeddings demoEmbeddings;
   private final KnnVectorDict vectorDict;
-
-  private IndexNPL(KnnVectorDict vectorDict) throws IOException {
+  private final long runId;
+  private final IndexMetrics metrics;
+  /* Per-document log lines, null unless verbose. */
+  private final AsyncLog log;
+  /* Threads of each parser pool: -threads, or as many as auto-tuning may use. */
+  private final int numThreads;
+  /* Number of parser threads allowed to index at once while auto-tuning, null otherwise. */
+  private final AutoTuner.Limiter activeWorkers;
+  private final boolean preserveOrder;
+  private final String format;
+
+  private IndexNPL(KnnVectorDict vectorDict, long runId, IndexMetrics metrics, boolean verbose,
+          int numThreads, AutoTuner.Bounds autoTuneBounds, boolean preserveOrder, String format)
+          throws IOException {
     if (vectorDict != null) {
       this.vectorDict = vectorDict;
       demoEmbeddings = new DemoEmbeddings(vectorDict);
@@ -73,16 +111,36 @@ public class IndexNPL implements AutoCloseable {
       this.vectorDict = null;
       demoEmbeddings = null;
     }
+    this.runId = runId;
+    this.metrics = metrics;
+    this.log = verbose ? new AsyncLog(System.out) : null;
+    // When auto-tuning, only numThreads of the threads start active
+    this.activeWorkers = autoTuneBounds != null ? new AutoTuner.Limiter(numThreads) : null;
+    this.numThreads = autoTuneBounds != null ? autoTuneBounds.maxWorkers : numThreads;
+    this.preserveOrder = preserveOrder;
+    this.format = format;
   }
 
   /** Index all text files under a directory. */
   public static void main(String[] args) throws Exception {
     String usage = "java es.udc.fi.ri.mrisearcher.IndexNPL"
-            + " [-openmode OPEN_MODE] [-index INDEX_PATH] -docs DOCS_PATH [-analyzer ANALYZER] [-stopwords STOPWORDS_PATH] -indexingmodel jm LAMBDA_VALUE | dir MU_VALUE\n\n"
+            + " [-openmode OPEN_MODE] [-index INDEX_PATH] -docs DOCS_PATH [-analyzer ANALYZER] [-stopwords STOPWORDS_PATH] [-reconcile]"
+            + " [-verbose] [-progress SECONDS] [-metricsReport JSON_OR_CSV_PATH] [-threads NUM] [-preserveOrder]"
+            + " [-format npl|trec|linedoc|jsonl]"
+            + " [-autoTune SECONDS [-autoTuneBounds ramMB=MIN:MAX,workers=MIN:MAX,mergeThreads=MIN:MAX,segmentsPerTier=MIN:MAX]] -indexingmodel jm LAMBDA_VALUE | dir MU_VALUE\n\n"
             + "This indexes the documents in DOCS_PATH using the specified analyzer and similarity model,"
             + "creating a Lucene index in INDEX_PATH that can be searched with the specified model.\n"
             + "Supported analyzers: standard, simple, whitespace, keyword, english\n"
-            + "Supported similarity models: jm lambda, dir mu";
+            + "Supported similarity models: jm lambda, dir mu\n"
+            + "With -reconcile, documents no longer in DOCS_PATH are deleted when appending\n"
+            + "With -verbose, a line is printed per document; -progress prints a progress line every SECONDS (none by default)\n"
+            + "With -autoTune, the RAM buffer, the number of -threads indexing at once and the merge settings"
+            + " are tuned during the first SECONDS of the run\n"
+            + "The collection is parsed and indexed in chunks by -threads threads (default: one per processor);"
+            + " with -preserveOrder (and -openmode create) the index is sorted and merged into one segment"
+            + " so that documents keep their order in the file\n"
+            + "DOCS_PATH is a file or a directory of files in -format (default npl), which may be gzipped;"
+            + " the files of a directory are parsed in parallel, one per thread";
     String indexPath = "index";
     String docsPath = null;
     String openmode = "create_or_append";
@@ -92,6 +150,15 @@ public class IndexNPL implements AutoCloseable {
     float jmLambda = -1;
     float dirMu = -1;
     String vectorDictSource = null;
+    boolean reconcile = false;
+    boolean verbose = false;
+    int progressSeconds = 0;
+    String metricsReport = null;
+    int autoTuneSeconds = 0;
+    AutoTuner.Bounds autoTuneBounds = new AutoTuner.Bounds();
+    int numThreads = Runtime.getRuntime().availableProcessors();
+    boolean preserveOrder = false;
+    String format = "npl";
     for (int i = 0; i < args.length; i++) {
       switch (args[i]) {
         case "-openmode":
@@ -123,15 +190,50 @@ public class IndexNPL implements AutoCloseable {
         case "-knn_dict":
           vectorDictSource = args[++i];
           break;
+        case "-reconcile":
+          reconcile = true;
+          break;
+        case "-verbose":
+          verbose = true;
+          break;
+        case "-progress":
+          progressSeconds = Integer.parseInt(args[++i]);
+          break;
+        case "-metricsReport":
+          metricsReport = args[++i];
+          break;
+        case "-autoTune":
+          autoTuneSeconds = Integer.parseInt(args[++i]);
+          break;
+        case "-autoTuneBounds":
+          autoTuneBounds = AutoTuner.Bounds.parse(args[++i]);
+          break;
+        case "-threads":
+          numThreads = Integer.parseInt(args[++i]);
+          break;
+        case "-preserveOrder":
+          preserveOrder = true;
+          break;
+        case "-format":
+          format = args[++i];
+          if (!CollectionParser.FORMATS.contains(format)) {
+            throw new IllegalArgumentException("Unknown format: " + format);
+          }
+          break;
         default:
           throw new IllegalArgumentException("Unknown parameter: " + args[i]);
       }
     }
 
-    if (docsPath == null || !indexingmodel) {
+    if (docsPath == null || !indexingmodel || numThreads <= 0) {
       System.out.println("Usage: " + usage);
       System.exit(1);
     }
+    if (preserveOrder && !openmode.equals("create")) {
+      // Un índice ya existente no está ordenado (o lo está de otra forma), y sus documentos
+      // quedarían mezclados con los nuevos
+      throw new IllegalArgumentException("-preserveOrder requires -openmode create, got " + openmode);
+    }
 
     Analyzer luceneAnalyzer = null;
     switch (analyzer) {
@@ -194,6 +296,10 @@ public class IndexNPL implements AutoCloseable {
       default:
         throw new IllegalArgumentException("Unknown open mode: " + openmode);
     }
+    if (preserveOrder) {
+      // Each segment is sorted by file offset; the final forceMerge(1) makes the order global
+      iwc.setIndexSort(new Sort(new SortField(ORDER_FIELD, SortField.Type.LONG)));
+    }
 
     //Convierte la ruta de String a Path
     final Path docDir = Paths.get(docsPath);
@@ -222,6 +328,11 @@ public class IndexNPL implements AutoCloseable {
       //
       // iwc.setRAMBufferSizeMB(256.0);
 
+      IndexMetrics metrics = new IndexMetrics();
+      iwc.setInfoStream(metrics.infoStream());
+      ConcurrentMergeScheduler cms = metrics.newMergeScheduler();
+      iwc.setMergeScheduler(cms);
+
       KnnVectorDict vectorDictInstance = null;
       long vectorDictSize = 0;
       if (vectorDictSource != null) {
@@ -230,9 +341,25 @@ public class IndexNPL implements AutoCloseable {
         vectorDictSize = vectorDictInstance.ramBytesUsed();
       }
 
+      metrics.start(progressSeconds);
       try (IndexWriter writer = new IndexWriter(dir, iwc);
-           IndexNPL indexFiles = new IndexNPL(vectorDictInstance)) {
-        indexFiles.indexDocs(writer, docDir);
+           IndexNPL indexFiles = new IndexNPL(vectorDictInstance, start.getTime(), metrics, verbose,
+               numThreads, autoTuneSeconds > 0 ? autoTuneBounds : null, preserveOrder, format)) {
+        AutoTuner tuner = autoTuneSeconds > 0
+                ? new AutoTuner(writer, cms, metrics, autoTuneBounds, indexFiles.activeWorkers,
+                        autoTuneSeconds)
+                : null;
+        try {
+          indexFiles.indexDocs(writer, docDir);
+        } finally {
+          if (tuner != null) {
+            tuner.stop();
+          }
+        }
+
+        if (reconcile && iwc.getOpenMode() != OpenMode.CREATE) {
+          indexFiles.deleteOrphans(writer);
+        }
 
         // NOTE: if you want to maximize search performance,
         // you can optionally call forceMerge here.  This can be
@@ -241,7 +368,13 @@ public class IndexNPL implements AutoCloseable {
         // you're done adding documents to it):
         //
         // writer.forceMerge(1);
+        //
+        // Con -preserveOrder si hace falta: el orden del índice solo vale dentro de cada segmento
+        if (preserveOrder) {
+          writer.forceMerge(1);
+        }
       } finally {
+        metrics.stop();
         IOUtils.close(vectorDictInstance);
       }
 
@@ -253,6 +386,10 @@ public class IndexNPL implements AutoCloseable {
                 + " documents in "
                 + (end.getTime() - start.getTime())
                 + " milliseconds");
+        metrics.printSummary();
+        if (metricsReport != null) {
+          metrics.writeReport(Paths.get(metricsReport));
+        }
         if (reader.numDocs() > 100
             && vectorDictSize < 1_000_000
             && System.getProperty("smoketester") == null) {
@@ -266,55 +403,272 @@ public class IndexNPL implements AutoCloseable {
   }
 
   void indexDocs(final IndexWriter writer, Path path) throws IOException {
-    if (Files.isRegularFile(path)) {
+    if (Files.isRegularFile(path) && format.equals("npl") && !CollectionParser.isGzipped(path)) {
       // Parse el archivo que contiene los documentos NPL
       parseNPLFile(path, writer);
+      return;
+    }
+    List<Path> files = new ArrayList<>();
+    if (Files.isDirectory(path)) {
+      Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+          if (attrs.isRegularFile() && !file.getFileName().toString().startsWith(".")) {
+            files.add(file);
+          }
+          return FileVisitResult.CONTINUE;
+        }
+      });
+      // Ordenados, para que -preserveOrder dé siempre el mismo orden
+      Collections.sort(files);
+    } else {
+      files.add(path);
+    }
+    parseFiles(files, writer);
+  }
+
+  /**
+   * Parses the files with the {@link CollectionParser} of the format and indexes their documents,
+   * one file per task on numThreads threads. Every file is streamed, so memory is bounded by
+   * numThreads documents being parsed plus the indexing buffer, whatever the size of the files.
+   * With -preserveOrder, documents are sorted by the number of their file in the list and then by
+   * their position in it.
+   */
+  void parseFiles(List<Path> files, final IndexWriter writer) throws IOException {
+    CollectionParser parser = CollectionParser.forFormat(format);
+    ExecutorService executor = newParserPool();
+    try {
+      List<Future<?>> tasks = new ArrayList<>();
+      for (int i = 0; i < files.size(); i++) {
+        Path file = files.get(i);
+        long fileOrder = (long) i << ORDER_FILE_SHIFT;
+        tasks.add(executor.submit(() -> {
+          try (BufferedReader in = CollectionParser.open(file)) {
+            parser.parse(in, (id, contents, ordinal, chars, startNanos) -> addNPLDocument(writer,
+                id, contents, fileOrder | ordinal, chars, startNanos));
+          } catch (IOException e) {
+            throw new IOException("error parsing " + file + ": " + e.getMessage(), e);
+          }
+          return null;
+        }));
+      }
+      await(tasks, files.size() == 1 ? files.get(0).toString() : files.size() + " files");
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private ExecutorService newParserPool() {
+    return Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        return new Thread(r, "npl-parser-" + count.getAndIncrement());
+      }
+    });
+  }
+
+  /* Espera a todas las tareas, relanzando la IOException de la primera que falle. */
+  private static void await(List<Future<?>> tasks, String what) throws IOException {
+    try {
+      for (Future<?> task : tasks) {
+        task.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while indexing " + what);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
     }
   }
 
-  // Parsea el archivo que contiene los documentos NPL y retorna una lista de documentos
+  /**
+   * Parses the NPL collection in file and indexes its documents. The file is split at "/" lines
+   * into chunks of about {@link #CHUNK_BYTES}, and each chunk is memory-mapped and parsed by one of
+   * numThreads threads, which all add to the same writer. Documents therefore reach the index out
+   * of order unless the index is sorted by {@link #ORDER_FIELD} and merged into one segment
+   * (-preserveOrder).
+   */
   void parseNPLFile(Path file, final IndexWriter writer) throws IOException {
-    try (BufferedReader br = Files.newBufferedReader(file)) {
-      String line;
-      String docIDNPL = null;
-      StringBuilder contents = new StringBuilder();
-
-      while ((line = br.readLine()) != null) {
-        if (docIDNPL == null) {
-          // Extract docId from the first line of each document
-          docIDNPL = line;
-        } else if (line.trim().equals("/")) {
-          // Extract content until encountering a line with only "/" (three spaces and a slash)
-          Document doc = new Document();
-
-          doc.add(new StringField("DocIDNPL", docIDNPL, Field.Store.YES));
-
-          doc.add(new TextField("Contents", contents.toString().trim(), Field.Store.YES));
-
-          if (writer.getConfig().getOpenMode() == OpenMode.CREATE) {
-            // New index, so we just add the document (no old document can be there):
-            System.out.println("adding " + doc.get("DocIDNPL"));
-            writer.addDocument(doc);
-          } else {
-            // Existing index (an old copy of this document may have been indexed) so
-            // we use updateDocument instead to replace the old one matching the exact
-            // DocIDNPL, if present:
-            System.out.println("updating " + doc.get("DocIDNPL"));
-            writer.updateDocument(new Term("DocIDNPL", docIDNPL), doc);
+    ExecutorService executor = newParserPool();
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      List<Future<?>> chunks = new ArrayList<>();
+      long size = channel.size();
+      long start = 0;
+      while (start < size) {
+        long end = start + CHUNK_BYTES >= size ? size : afterDelimiter(channel, start + CHUNK_BYTES);
+        long chunkStart = start;
+        chunks.add(executor.submit(() -> {
+          parseChunk(channel, chunkStart, end, writer);
+          return null;
+        }));
+        start = end;
+      }
+      await(chunks, file.toString());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Returns the position right after the first "/" line that starts after from, or the end of the
+   * file. The line from falls in is skipped, since only whole lines can be told apart.
+   */
+  static long afterDelimiter(FileChannel channel, long from) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+    long position = from;
+    boolean wholeLine = false;
+    int slashes = 0;
+    boolean other = false;
+    while (true) {
+      buffer.clear();
+      int n = channel.read(buffer, position);
+      if (n <= 0) {
+        return channel.size();
+      }
+      for (int i = 0; i < n; i++) {
+        byte b = buffer.get(i);
+        if (b == '\n') {
+          // As String.trim, everything up to ' ' counts as blank, '\r' included
+          if (wholeLine && slashes == 1 && !other) {
+            return position + i + 1;
           }
-          docIDNPL = null;
-          contents = new StringBuilder();
-        } else {
-          // Append content to contentBuilder
-          contents.append(line).append(System.lineSeparator());
+          wholeLine = true;
+          slashes = 0;
+          other = false;
+        } else if (b == '/') {
+          slashes++;
+        } else if ((b & 0xff) > ' ') {
+          other = true;
+        }
+      }
+      position += n;
+    }
+  }
+
+  /* Parsea los documentos entre start y end, que empieza en la línea del id de un documento. */
+  private void parseChunk(FileChannel channel, long start, long end, final IndexWriter writer)
+          throws IOException {
+    MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+    byte[] line = new byte[256];
+    String docIDNPL = null;
+    long docStart = 0;
+    StringBuilder contents = new StringBuilder();
+    long startNanos = 0;
+    long bytes = 0;
+
+    while (chunk.hasRemaining()) {
+      // Una línea, sin el salto de línea, como BufferedReader.readLine
+      int length = 0;
+      int lineStart = chunk.position();
+      while (chunk.hasRemaining()) {
+        byte b = chunk.get();
+        if (b == '\n') {
+          break;
         }
+        if (b == '\r') {
+          if (chunk.hasRemaining() && chunk.get(chunk.position()) == '\n') {
+            chunk.get();
+          }
+          break;
+        }
+        if (length == line.length) {
+          line = Arrays.copyOf(line, length * 2);
+        }
+        line[length++] = b;
+      }
+      bytes += chunk.position() - lineStart;
+      String text = new String(line, 0, length, StandardCharsets.UTF_8);
+
+      if (docIDNPL == null) {
+        // Extract docId from the first line of each document
+        docIDNPL = text;
+        docStart = start + lineStart;
+        startNanos = System.nanoTime();
+      } else if (text.trim().equals("/")) {
+        // Extract content until encountering a line with only "/" (three spaces and a slash)
+        addNPLDocument(writer, docIDNPL, contents.toString().trim(), docStart, bytes, startNanos);
+        bytes = 0;
+        docIDNPL = null;
+        contents.setLength(0);
+      } else {
+        // Append content to contentBuilder
+        contents.append(text).append(System.lineSeparator());
       }
     }
   }
 
+  private void addNPLDocument(final IndexWriter writer, String docIDNPL, String contents,
+          long offset, long bytes, long startNanos) throws IOException {
+    if (activeWorkers == null) {
+      addDoc(writer, docIDNPL, contents, offset, bytes, startNanos);
+      return;
+    }
+    activeWorkers.acquireUninterruptibly();
+    try {
+      addDoc(writer, docIDNPL, contents, offset, bytes, startNanos);
+    } finally {
+      activeWorkers.release();
+    }
+  }
+
+  private void addDoc(final IndexWriter writer, String docIDNPL, String contents, long offset,
+          long bytes, long startNanos) throws IOException {
+    Document doc = new Document();
+
+    doc.add(new StringField("DocIDNPL", docIDNPL, Field.Store.YES));
+
+    doc.add(new TextField("Contents", contents, Field.Store.YES));
+
+    doc.add(new LongPoint(RUN_FIELD, runId));
+    if (preserveOrder) {
+      doc.add(new NumericDocValuesField(ORDER_FIELD, offset));
+    }
+    long built = System.nanoTime();
+
+    if (writer.getConfig().getOpenMode() == OpenMode.CREATE) {
+      // New index, so we just add the document (no old document can be there):
+      if (log != null) {
+        log.println("adding " + docIDNPL);
+      }
+      writer.addDocument(doc);
+    } else {
+      // Existing index (an old copy of this document may have been indexed) so
+      // we use updateDocument instead to replace the old one matching the exact
+      // DocIDNPL, if present:
+      if (log != null) {
+        log.println("updating " + docIDNPL);
+      }
+      writer.updateDocument(new Term("DocIDNPL", docIDNPL), doc);
+    }
+    metrics.worker().indexed(bytes, built - startNanos, System.nanoTime() - built);
+  }
+
+  /**
+   * Deletes the documents that this run did not add or update, i.e. those whose DocIDNPL is no
+   * longer in the collection. Every document indexed by the run carries its id in RUN_FIELD, so a
+   * single deleteDocuments query removes the rest without keeping any list of ids in memory.
+   */
+  void deleteOrphans(final IndexWriter writer) throws IOException {
+    BooleanQuery.Builder orphans = new BooleanQuery.Builder();
+    orphans.add(new MatchAllDocsQuery(), BooleanClause.Occur.FILTER);
+    orphans.add(LongPoint.newExactQuery(RUN_FIELD, runId), BooleanClause.Occur.MUST_NOT);
+    Query query = orphans.build();
+    int count;
+    try (DirectoryReader reader = DirectoryReader.open(writer)) {
+      count = new IndexSearcher(reader).count(query);
+    }
+    writer.deleteDocuments(query);
+    System.out.println("Deleted " + count + " documents no longer in the collection");
+  }
+
   @Override
   public void close() throws IOException {
-    IOUtils.close(vectorDict);
+    IOUtils.close(log, vectorDict);
   }
 }
 
@@ -0,0 +1,151 @@
+package es.udc.fi.ri.mrisearcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiBits;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Parses the collections under src/test/resources/collections with {@link CollectionParser} and
+ * indexes them with {@link IndexNPL}.
+ */
+public class CollectionParserTest {
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void trec() throws Exception {
+    List<String[]> docs = parse("trec", collection("trec/docs.trec"));
+    assertIds(docs, "FT911-1", "WTX-2");
+    assertEquals("Oil prices rise" + System.lineSeparator() + "Crude oil rose for the third day.",
+        docs.get(0)[1]);
+    // Markup and the DOCHDR of web collections are not part of the contents
+    assertEquals("Web page text", docs.get(1)[1].trim());
+  }
+
+  @Test
+  public void lineDoc() throws Exception {
+    List<String[]> docs = parse("linedoc", collection("linedoc/docs.txt"));
+    assertIds(docs, "ld-1", "ld-2");
+    assertEquals("First title" + System.lineSeparator() + "First body text", docs.get(0)[1]);
+    assertEquals("Second body text", docs.get(1)[1]);
+  }
+
+  @Test
+  public void lineDocDefaultHeader() throws Exception {
+    // The header of an unmodified WriteLineDocTask file has no id column
+    List<String[]> docs = parse("linedoc", collection("linedoc/default-header.txt"));
+    assertIds(docs, "0", "1");
+    assertEquals("First title" + System.lineSeparator() + "First body text", docs.get(0)[1]);
+    assertEquals("Second body text", docs.get(1)[1]);
+  }
+
+  @Test
+  public void jsonl() throws Exception {
+    List<String[]> docs = parse("jsonl", collection("jsonl/docs.jsonl"));
+    // The id of the nested object is not the id of the document, and blank lines are skipped
+    assertIds(docs, "js-1", "js-2", "js-3");
+    assertEquals("plain text", docs.get(0)[1]);
+    assertEquals("escaped \"quotes\" and é", docs.get(1)[1]);
+    assertEquals("third document", docs.get(2)[1]);
+  }
+
+  @Test
+  public void npl() throws Exception {
+    List<String[]> docs = parse("npl", collection("npl/docs.npl"));
+    assertIds(docs, "1", "2", "3");
+    assertEquals("compact memories have flexible capacities" + System.lineSeparator()
+        + "a digital data storage system", docs.get(0)[1]);
+    assertEquals("an electronic analogue computer", docs.get(1)[1]);
+    assertEquals("electronic coordinate transformation", docs.get(2)[1]);
+  }
+
+  @Test
+  public void gzipped() throws Exception {
+    Path file = collection("gzip/docs.npl.gz");
+    assertTrue(CollectionParser.isGzipped(file));
+    assertFalse(CollectionParser.isGzipped(collection("npl/docs.npl")));
+    List<String[]> docs = parse("npl", file);
+    assertIds(docs, "10", "11");
+    assertEquals("gzipped second document", docs.get(1)[1]);
+  }
+
+  @Test
+  public void indexNPL() throws Exception {
+    assertEquals(Arrays.asList("1", "2", "3"), index("npl", collection("npl/docs.npl")));
+    assertEquals(Arrays.asList("FT911-1", "WTX-2"), index("trec", collection("trec/docs.trec")));
+    assertEquals(Arrays.asList("ld-1", "ld-2"), index("linedoc", collection("linedoc/docs.txt")));
+    assertEquals(Arrays.asList("0", "1"), index("linedoc", collection("linedoc/default-header.txt")));
+    assertEquals(Arrays.asList("js-1", "js-2", "js-3"), index("jsonl", collection("jsonl/docs.jsonl")));
+    assertEquals(Arrays.asList("10", "11"), index("npl", collection("gzip/docs.npl.gz")));
+  }
+
+  @Test
+  public void indexNPLNestedDirectory() throws Exception {
+    // Files of subdirectories are indexed too, those whose name starts with a dot are not
+    assertEquals(Arrays.asList("N-1", "N-2", "N-3"), index("trec", collection("nested")));
+  }
+
+  private static Path collection(String name) throws URISyntaxException {
+    return Paths.get(CollectionParserTest.class.getResource("/collections/" + name).toURI());
+  }
+
+  /* Pares (id, contents) de los documentos de file, en orden. */
+  private static List<String[]> parse(String format, Path file) throws IOException {
+    List<String[]> docs = new ArrayList<>();
+    try (BufferedReader in = CollectionParser.open(file)) {
+      CollectionParser.forFormat(format).parse(in, (id, contents, ordinal, chars, startNanos) -> {
+        assertEquals(docs.size(), ordinal);
+        docs.add(new String[] {id, contents});
+      });
+    }
+    return docs;
+  }
+
+  private static void assertIds(List<String[]> docs, String... ids) {
+    List<String> actual = new ArrayList<>();
+    for (String[] doc : docs) {
+      actual.add(doc[0]);
+    }
+    assertEquals(Arrays.asList(ids), actual);
+  }
+
+  /* Indexa docs con IndexNPL y devuelve los DocIDNPL del índice, ordenados. */
+  private List<String> index(String format, Path docs) throws Exception {
+    Path index = temp.newFolder().toPath().resolve("index");
+    IndexNPL.main(new String[] {"-index", index.toString(), "-docs", docs.toString(),
+        "-format", format, "-openmode", "create", "-threads", "2", "-indexingmodel", "jm", "0.5"});
+    List<String> ids = new ArrayList<>();
+    try (Directory dir = FSDirectory.open(index);
+         IndexReader reader = DirectoryReader.open(dir)) {
+      Bits liveDocs = MultiBits.getLiveDocs(reader);
+      for (int i = 0; i < reader.maxDoc(); i++) {
+        if (liveDocs == null || liveDocs.get(i)) {
+          ids.add(reader.document(i).get("DocIDNPL"));
+        }
+      }
+      assertEquals(ids.size(), reader.numDocs());
+    }
+    // Los hilos de IndexNPL los añaden en cualquier orden
+    Collections.sort(ids);
+    return ids;
+  }
+}